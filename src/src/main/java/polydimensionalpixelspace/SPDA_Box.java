@@ -0,0 +1,67 @@
+package src.main.java.polydimensionalpixelspace;
+
+/**
+ *
+ * A bounding box of voxels within a single frame. Starts are inclusive and ends are exclusive; a new box is empty until voxels are included.
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_Box {
+	public int xStart = Integer.MAX_VALUE, yStart = Integer.MAX_VALUE, zStart = Integer.MAX_VALUE;
+	public int xEnd = Integer.MIN_VALUE, yEnd = Integer.MIN_VALUE, zEnd = Integer.MIN_VALUE;
+
+	public SPDA_Box(){
+
+	}
+
+	/**
+	 * Creates a box covering the given ranges
+	 */
+	public SPDA_Box(int xStart, int yStart, int zStart, int xEnd, int yEnd, int zEnd){
+		this.xStart = xStart;
+		this.yStart = yStart;
+		this.zStart = zStart;
+		this.xEnd = xEnd;
+		this.yEnd = yEnd;
+		this.zEnd = zEnd;
+	}
+
+	/**
+	 * Grows the box to include a voxel
+	 */
+	public void include(int x, int y, int z){
+		if(x<xStart) xStart = x;
+		if(y<yStart) yStart = y;
+		if(z<zStart) zStart = z;
+		if(x>=xEnd) xEnd = x+1;
+		if(y>=yEnd) yEnd = y+1;
+		if(z>=zEnd) zEnd = z+1;
+	}
+
+	/**
+	 * Grows the box to include another box
+	 */
+	public void include(SPDA_Box box){
+		if(box.isEmpty()) return;
+		include(box.xStart, box.yStart, box.zStart);
+		include(box.xEnd-1, box.yEnd-1, box.zEnd-1);
+	}
+
+	public boolean isEmpty(){
+		return xEnd<=xStart;
+	}
+
+	public int getWidth(){
+		return xEnd-xStart;
+	}
+
+	public int getHeight(){
+		return yEnd-yStart;
+	}
+
+	public int getDepth(){
+		return zEnd-zStart;
+	}
+}
@@ -0,0 +1,165 @@
+package src.main.java.polydimensionalpixelspace;
+
+/**
+ *
+ * <p>Running statistics of a table of colour values - the number of rows, the mean of each colour and the co-moments (sums of products of
+ * deviations from the means) of each pair of colours - from which the covariance and correlation matrices can be found without revisiting
+ * the rows. Rows are added a block at a time, and the statistics of separate blocks and tables are merged (Chan et al.), so
+ * images can be processed separately and then combined.</p>
+ *
+ * <p>Only the upper triangle of the co-moments is calculated. Tables are read in blocks of BLOCK rows, which can be calculated in parallel
+ * and are always merged in the same order, so the results do not depend on the number of threads.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_Covariance {
+	/**
+	 * Number of table rows in each block
+	 */
+	static final int BLOCK = 4096;
+	private final int channels;
+	private long count;
+	private final double[] means;
+	private final double[][] comoments;
+	private final double[] delta;
+
+	public SPDA_Covariance(int channels){
+		this.channels = channels;
+		means = new double[channels];
+		comoments = new double[channels][channels];
+		delta = new double[channels];
+	}
+
+	/**
+	 * Calculates the statistics of a sample table, splitting its blocks between threads
+	 *
+	 * @param threads	Number of threads to use (see SPDA_Parallel.threads)
+	 * @return		The statistics of every row of the table
+	 */
+	public static SPDA_Covariance of(final SPDA_Sample_Table table, int threads){
+		final int rows = table.getRows();
+		final SPDA_Covariance[] blocks = new SPDA_Covariance[(rows+BLOCK-1)/BLOCK];
+		SPDA_Parallel.forRange(threads, 0, blocks.length, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int b = from; b<to; b++){
+					blocks[b] = new SPDA_Covariance(table.getChannels());
+					blocks[b].addBlock(table, b*BLOCK, Math.min(rows, (b+1)*BLOCK));
+				}
+			}
+		});
+		return merge(table.getChannels(), blocks);
+	}
+
+	/**
+	 * Merges the statistics of consecutive blocks of rows, in order
+	 *
+	 * @return		The statistics of all the blocks
+	 */
+	static SPDA_Covariance merge(int channels, SPDA_Covariance[] blocks){
+		SPDA_Covariance statistics = new SPDA_Covariance(channels);
+		for(int b = 0; b<blocks.length; b++){
+			statistics.merge(blocks[b]);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Calculates the statistics of a block of rows into these (empty) statistics, working down the colour columns: the means first, then the 
+	 * co-moments of each pair of colours in the upper triangle.
+	 */
+	void addBlock(SPDA_Sample_Table table, int from, int to){
+		int length = to-from;
+		if(length<=0) return;
+		double[][] deviations = new double[channels][length];
+		for(int c = 0; c<channels; c++){
+			double[] column = table.getColumn(c);
+			double sum = 0.0;
+			for(int i = from; i<to; i++){
+				sum += column[i];
+			}
+			double mean = sum/length;
+			means[c] = mean;
+			double[] deviation = deviations[c];
+			for(int i = from; i<to; i++){
+				deviation[i-from] = column[i]-mean;
+			}
+		}
+		for(int x = 0; x<channels; x++){
+			double[] deviationX = deviations[x];
+			for(int y = x; y<channels; y++){
+				double[] deviationY = deviations[y];
+				double sum = 0.0;
+				for(int i = 0; i<length; i++){
+					sum += deviationX[i]*deviationY[i];
+				}
+				comoments[x][y] = sum;
+			}
+		}
+		count = length;
+	}
+
+	/**
+	 * Adds the statistics of another set of rows to these, as if its rows had been added here
+	 *
+	 * @param other		Statistics of the other rows, for the same colours
+	 */
+	public void merge(SPDA_Covariance other){
+		if(other.count == 0) return;
+		if(count == 0){
+			count = other.count;
+			System.arraycopy(other.means, 0, means, 0, channels);
+			for(int i = 0; i<channels; i++){
+				System.arraycopy(other.comoments[i], 0, comoments[i], 0, channels);
+			}
+			return;
+		}
+		double total = count+other.count;
+		double weight = (double) count*other.count/total;
+		for(int i = 0; i<channels; i++){
+			delta[i] = other.means[i]-means[i];
+		}
+		for(int i = 0; i<channels; i++){
+			for(int j = i; j<channels; j++){
+				comoments[i][j] += other.comoments[i][j]+delta[i]*delta[j]*weight;
+			}
+			means[i] += delta[i]*other.count/total;
+		}
+		count += other.count;
+	}
+
+	public long getCount(){
+		return count;
+	}
+
+	public int getChannels(){
+		return channels;
+	}
+
+	public double getMean(int c){
+		return means[c];
+	}
+
+	/**
+	 * @return		The sum of products of deviations from the means of two colours
+	 */
+	public double getComoment(int x, int y){
+		if(x>y) return comoments[y][x];
+		return comoments[x][y];
+	}
+
+	/**
+	 * @return		The sample covariance of two colours
+	 */
+	public double covariance(int x, int y){
+		return getComoment(x,y)/(count-1);
+	}
+
+	/**
+	 * @return		The correlation of two colours
+	 */
+	public double correlation(int x, int y){
+		return getComoment(x,y)/Math.sqrt(getComoment(x,x)*getComoment(y,y));
+	}
+}
@@ -0,0 +1,260 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import ij.IJ;
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+/**
+ *
+ * <p>Eigenvalues and eigenvectors of the symmetric covariance or correlation matrix, sorted from the largest eigenvalue down.</p>
+ *
+ * <p>All components are found with Jama's symmetric decomposition (Householder reduction to tridiagonal form, then the QL algorithm). When only
+ * the first few components are wanted, as with panels of many colours, they are found by subspace iteration: a block of vectors is repeatedly
+ * multiplied by the matrix and orthonormalised, and the components are read from the small projected matrix (Rayleigh-Ritz). The starting
+ * block is seeded, so the result is always the same.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+class SPDA_Eigen {
+	/**
+	 * Largest number of subspace iterations before falling back to the full decomposition
+	 */
+	static final int MAX_ITERATIONS = 1000;
+	/**
+	 * Residual of each component, relative to the largest eigenvalue, at which subspace iteration stops
+	 */
+	static final double TOLERANCE = 1e-10;
+	/**
+	 * Sorted eigenvalues
+	 */
+	double[] values;
+	/**
+	 * Eigenvectors, arranged colour/component
+	 */
+	double[][] vectors;
+
+	private SPDA_Eigen(double[] values, double[][] vectors){
+		this.values = values;
+		this.vectors = vectors;
+	}
+
+	/**
+	 * Finds the first components of a symmetric matrix
+	 *
+	 * @param matrix	The symmetric matrix
+	 * @param components	Number of components to find - 0 or less, or at least the size of the matrix, finds them all
+	 * @return		The sorted components
+	 */
+	static SPDA_Eigen of(double[][] matrix, int components){
+		int n = matrix.length;
+		if(components>0 && components<n){
+			SPDA_Eigen top = top(matrix, components);
+			if(top != null) return top;
+			IJ.log("Subspace iteration did not converge, finding all components");
+			return all(matrix).truncate(components);
+		}
+		return all(matrix);
+	}
+
+	/**
+	 * Finds every component with the symmetric decomposition
+	 */
+	static SPDA_Eigen all(double[][] matrix){
+		EigenvalueDecomposition eigen = new EigenvalueDecomposition(new Matrix(matrix));
+		return sorted(eigen.getRealEigenvalues(), eigen.getV().getArray());
+	}
+
+	/**
+	 * Finds the first components by subspace iteration
+	 *
+	 * @return		The sorted components, or null if they did not converge
+	 */
+	static SPDA_Eigen top(double[][] matrix, int components){
+		int n = matrix.length;
+		//A few extra vectors speed convergence of the last wanted component
+		int block = Math.min(n, components+Math.min(components, 8));
+		double[][] q = new double[n][block];
+		double[][] z = new double[n][block];
+		Random rand = new Random(n);
+		for(int i = 0; i<n; i++){
+			for(int j = 0; j<block; j++){
+				q[i][j] = rand.nextGaussian();
+			}
+		}
+		orthonormalise(q);
+		for(int iteration = 0; iteration<MAX_ITERATIONS; iteration++){
+			multiply(matrix, q, z);
+			orthonormalise(z);
+			double[][] swap = q;
+			q = z;
+			z = swap;
+			SPDA_Eigen ritz = rayleighRitz(matrix, q, z);
+			if(ritz.converged(matrix, components)){
+				return ritz.truncate(components);
+			}
+			//Continue from the Ritz vectors, which are ordered by eigenvalue
+			for(int i = 0; i<n; i++){
+				System.arraycopy(ritz.vectors[i], 0, q[i], 0, block);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sorts eigenvalues from the largest down, with their eigenvectors
+	 *
+	 * @param values	Eigenvalues, in any order
+	 * @param vectors	Eigenvectors, arranged colour/component
+	 * @return		The sorted components
+	 */
+	static SPDA_Eigen sorted(final double[] values, double[][] vectors){
+		Integer[] order = new Integer[values.length];
+		for(int i = 0; i<order.length; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return Double.compare(values[b], values[a]);
+			}
+		});
+		double[] sortedValues = new double[values.length];
+		double[][] sortedVectors = new double[vectors.length][values.length];
+		for(int j = 0; j<order.length; j++){
+			sortedValues[j] = values[order[j]];
+			for(int i = 0; i<vectors.length; i++){
+				sortedVectors[i][j] = vectors[i][order[j]];
+			}
+		}
+		return new SPDA_Eigen(sortedValues, sortedVectors);
+	}
+
+	/**
+	 * @return		The first components only
+	 */
+	SPDA_Eigen truncate(int components){
+		if(components>=values.length) return this;
+		double[][] first = new double[vectors.length][];
+		for(int i = 0; i<vectors.length; i++){
+			first[i] = Arrays.copyOf(vectors[i], components);
+		}
+		return new SPDA_Eigen(Arrays.copyOf(values, components), first);
+	}
+
+	/**
+	 * Solves the matrix projected onto the orthonormal block q, and rotates the block onto its eigenvectors
+	 *
+	 * @param aq		Scratch space the size of q
+	 */
+	private static SPDA_Eigen rayleighRitz(double[][] matrix, double[][] q, double[][] aq){
+		int n = q.length;
+		int block = q[0].length;
+		multiply(matrix, q, aq);
+		double[][] projected = new double[block][block];
+		for(int x = 0; x<block; x++){
+			for(int y = x; y<block; y++){
+				double sum = 0.0;
+				for(int i = 0; i<n; i++){
+					sum += q[i][x]*aq[i][y];
+				}
+				projected[x][y] = sum;
+				projected[y][x] = sum;
+			}
+		}
+		SPDA_Eigen small = all(projected);
+		double[][] vectors = new double[n][block];
+		for(int i = 0; i<n; i++){
+			for(int k = 0; k<block; k++){
+				double value = q[i][k];
+				double[] weights = small.vectors[k];
+				for(int j = 0; j<block; j++){
+					vectors[i][j] += value*weights[j];
+				}
+			}
+		}
+		return new SPDA_Eigen(small.values, vectors);
+	}
+
+	/**
+	 * @return		True if the first components satisfy Av = lambda v to within the tolerance
+	 */
+	private boolean converged(double[][] matrix, int components){
+		int n = vectors.length;
+		double scale = Math.max(Math.abs(values[0]), Double.MIN_NORMAL);
+		for(int j = 0; j<components; j++){
+			double residual = 0.0;
+			for(int i = 0; i<n; i++){
+				double sum = 0.0;
+				for(int k = 0; k<n; k++){
+					sum += matrix[i][k]*vectors[k][j];
+				}
+				double difference = sum-values[j]*vectors[i][j];
+				residual += difference*difference;
+			}
+			if(Math.sqrt(residual)>TOLERANCE*scale) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * out = matrix * q
+	 */
+	private static void multiply(double[][] matrix, double[][] q, double[][] out){
+		int n = q.length;
+		int block = q[0].length;
+		for(int i = 0; i<n; i++){
+			double[] row = out[i];
+			Arrays.fill(row, 0.0);
+			double[] line = matrix[i];
+			for(int k = 0; k<n; k++){
+				double value = line[k];
+				double[] qRow = q[k];
+				for(int j = 0; j<block; j++){
+					row[j] += value*qRow[j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Orthonormalises the columns of a block in place (modified Gram-Schmidt). A column that is lost to rounding is replaced by a unit vector.
+	 */
+	private static void orthonormalise(double[][] q){
+		int n = q.length;
+		int block = q[0].length;
+		for(int j = 0; j<block; j++){
+			for(int attempt = 0; attempt<=n; attempt++){
+				for(int pass = 0; pass<2; pass++){
+					for(int k = 0; k<j; k++){
+						double dot = 0.0;
+						for(int i = 0; i<n; i++){
+							dot += q[i][k]*q[i][j];
+						}
+						for(int i = 0; i<n; i++){
+							q[i][j] -= dot*q[i][k];
+						}
+					}
+				}
+				double norm = 0.0;
+				for(int i = 0; i<n; i++){
+					norm += q[i][j]*q[i][j];
+				}
+				norm = Math.sqrt(norm);
+				if(norm>1e-150){
+					for(int i = 0; i<n; i++){
+						q[i][j] /= norm;
+					}
+					break;
+				}
+				for(int i = 0; i<n; i++){
+					q[i][j] = (i == (j+attempt)%n) ? 1.0 : 0.0;
+				}
+			}
+		}
+	}
+}
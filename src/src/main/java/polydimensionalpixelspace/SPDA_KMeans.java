@@ -0,0 +1,585 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ij.IJ;
+
+/**
+ *
+ * <p>K-Means clustering of the rows of a sample table in ratio colour space: each row, and each centroid, is divided by its largest colour
+ * value before the distance between them is found (as Colour_Distance_Analysis.getColourDistance in ratio mode). Centroids are the means
+ * of the original colour values of their rows.</p>
+ *
+ * <p>The ratio values of every row are calculated once, before the first iteration. Each iteration assigns the rows in a fixed number of
+ * partitions, which can be run in parallel and each have their own centroid sums; the sums are merged in partition order, so the
+ * assignments do not depend on the number of threads. Nothing is allocated within the iterations.</p>
+ *
+ * <p>In Hamerly mode, each row keeps an upper bound on the distance to its centroid and a lower bound on the distance to every other
+ * centroid. The bounds are moved by the distance each centroid moves, and a row is only measured again when its bounds, or half the distance
+ * from its centroid to the nearest other centroid, no longer show that it stays put. Rows that are measured again are assigned exactly as
+ * in Lloyd's method, and the centroid sums are still taken over every row, so the clustering is the same.</p>
+ *
+ * <p>In mini-batch mode, each iteration draws a random batch of rows, assigns it, and moves each centroid towards its rows by a step that
+ * shrinks with the number of rows the centroid has taken (Sculley, 2010). Every row is then assigned once to the trained centroids. Only the
+ * batch is held in ratio colour space, so very large tables can be clustered in a few passes' worth of work.</p>
+ *
+ * <p>The starting centroids are copies of rows, either picked at random or by k-means++ seeding on a random sample of the rows: each
+ * centroid after the first is picked with a probability proportional to the squared distance to the nearest centroid already picked.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_KMeans {
+	/**
+	 * Largest number of partitions of the table in each iteration
+	 */
+	static final int PARTITIONS = 64;
+	/**
+	 * Smallest number of rows in each partition
+	 */
+	static final int PARTITION_ROWS = 1024;
+	/**
+	 * Bounds are only trusted to show that a row stays put by at least this distance, to allow for rounding. Ratio values are at most 1.
+	 */
+	static final double SLACK = 1e-9;
+	/**
+	 * Largest number of rows considered by k-means++ seeding
+	 */
+	static final int SEEDING_ROWS = 20000;
+	private final int k, maxIterations;
+	private final SPDA_Options options;
+	private double[][] centroids;
+	private int iterations;
+	private StringBuilder log;
+	//State of the fit, shared with the partitions
+	private int rows, colours, partitions;
+	private float[] ratios;
+	private double[][] columns, sums;
+	private int[][] counts;
+	private int[] groups, changes;
+	private double[] ratioCentroids, previousCentroids;
+	private double[] upper, lower, moves, separation;
+	private boolean bounded;
+	private int furthest;
+	private double furthestMove, secondMove;
+
+	/**
+	 * @param k		Number of groups
+	 * @param maxIterations	Largest number of iterations
+	 * @param options	Optional settings of the analysis - the number of threads, the seed, the k-means method and whether progress is logged
+	 */
+	public SPDA_KMeans(int k, int maxIterations, SPDA_Options options){
+		this.k = k;
+		this.maxIterations = maxIterations;
+		this.options = options;
+	}
+
+	/**
+	 * Fits the centroids to the rows of a table, starting from rows chosen with the seed of the options.
+	 *
+	 * @param table		The rows to cluster
+	 * @return		The group of each row
+	 */
+	public int[] fit(SPDA_Sample_Table table){
+		rows = table.getRows();
+		colours = table.getChannels();
+		centroids = new double[k][colours];
+		iterations = 0;
+		if(rows == 0) return new int[0];
+		Random rand = new Random(options.seed);
+		if(options.kMeansInit == SPDA_Pixelspace.KMEANS_INIT_PLUSPLUS){
+			seedPlusPlus(table, rand);
+		} else {
+			for(int i = 0; i<k; i++){
+				table.getRow(rand.nextInt(rows), centroids[i]);
+			}
+		}
+		log = new StringBuilder();
+		if(options.kMeansMethod == SPDA_Pixelspace.KMEANS_MINIBATCH){
+			return fitMiniBatch(table, rand);
+		}
+
+		ratios = ratios(table);
+		columns = columns(table);
+		ratioCentroids = new double[k*colours];
+		groups = new int[rows];
+		Arrays.fill(groups, -1);
+		partitions = partitions(rows);
+		sums = new double[partitions][k*colours];
+		counts = new int[partitions][k];
+		changes = new int[partitions];
+		boolean hamerly = options.kMeansMethod == SPDA_Pixelspace.KMEANS_HAMERLY && k>1;
+		if(hamerly){
+			previousCentroids = new double[k*colours];
+			upper = new double[rows];
+			lower = new double[rows];
+			moves = new double[k];
+			separation = new double[k];
+		}
+		bounded = false;
+
+		while(iterations<maxIterations){
+			ratioCentroids(ratioCentroids);
+			if(hamerly){
+				if(iterations>0) moveBounds();
+				System.arraycopy(ratioCentroids, 0, previousCentroids, 0, ratioCentroids.length);
+			}
+			final boolean useBounds = hamerly;
+			SPDA_Parallel.forRange(options.threads, 0, partitions, 1, new SPDA_Parallel.Body(){
+				public void run(int from, int to){
+					for(int p = from; p<to; p++){
+						assignPartition(p, useBounds);
+					}
+				}
+			});
+			bounded = hamerly;
+			iterations++;
+			int changed = update(sums, counts, changes, colours);
+			if(options.kMeansLog){
+				log.append("Iteration ").append(iterations).append(": ").append(changed).append(" rows reassigned\n");
+			}
+			if(changed == 0) break;
+		}
+		if(options.kMeansLog){
+			logCentroids(counts[0]);
+		}
+		int[] result = groups;
+		release();
+		return result;
+	}
+
+	/**
+	 * Assigns the rows of one partition and adds them to its centroid sums
+	 *
+	 * @param useBounds	If true, keep the Hamerly bounds of each row and use them to skip rows that cannot move
+	 */
+	private void assignPartition(int p, boolean useBounds){
+		double[] sum = sums[p];
+		int[] count = counts[p];
+		Arrays.fill(sum, 0.0);
+		Arrays.fill(count, 0);
+		int changed = 0;
+		int end = partitionEnd(p, partitions, rows);
+		for(int i = partitionEnd(p-1, partitions, rows); i<end; i++){
+			int group;
+			if(useBounds){
+				group = boundedNearest(i);
+			} else {
+				group = nearest(ratios, i*colours, ratioCentroids, colours);
+			}
+			if(group != groups[i]){
+				groups[i] = group;
+				changed++;
+			}
+			count[group]++;
+			int offset = group*colours;
+			for(int c = 0; c<colours; c++){
+				sum[offset+c] += columns[c][i];
+			}
+		}
+		changes[p] = changed;
+	}
+
+	/**
+	 * Finds the nearest centroid to a row using its bounds, measuring it against every centroid only if they cannot show it stays put.
+	 * The bounds of the row are updated.
+	 */
+	private int boundedNearest(int i){
+		int group = groups[i];
+		if(bounded){
+			double limit = Math.max(separation[group], lower[i])-SLACK;
+			if(upper[i]<limit) return group;
+			upper[i] = Math.sqrt(distance(ratios, i*colours, ratioCentroids, group*colours, colours));
+			if(upper[i]<limit) return group;
+		}
+		int offset = i*colours;
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE, secondDistance = Double.MAX_VALUE;
+		boolean exact = true;
+		for(int j = 0; j<k; j++){
+			double distance = distance(ratios, offset, ratioCentroids, j*colours, colours);
+			if(distance != distance){
+				distance = 0.0;
+				exact = false;
+			}
+			if(distance<bestDistance){
+				secondDistance = bestDistance;
+				bestDistance = distance;
+				best = j;
+			} else if(distance<secondDistance){
+				secondDistance = distance;
+			}
+		}
+		if(exact){
+			upper[i] = Math.sqrt(bestDistance);
+			lower[i] = Math.sqrt(secondDistance);
+		} else {
+			//Rows or centroids that cannot be divided by their largest value do not obey the triangle inequality
+			upper[i] = Double.POSITIVE_INFINITY;
+			lower[i] = 0.0;
+		}
+		return best;
+	}
+
+	/**
+	 * Moves the bounds of every row by the distance each centroid moved in the last update, and finds half the distance from each centroid to 
+	 * the nearest other centroid. If any centroid cannot be divided by its largest value, no row is skipped this iteration.
+	 */
+	private void moveBounds(){
+		furthest = -1;
+		furthestMove = 0.0;
+		secondMove = 0.0;
+		boolean exact = true;
+		for(int j = 0; j<k; j++){
+			moves[j] = Math.sqrt(distance(previousCentroids, j*colours, ratioCentroids, j*colours, colours));
+			if(moves[j] != moves[j]) exact = false;
+			if(moves[j]>furthestMove){
+				secondMove = furthestMove;
+				furthestMove = moves[j];
+				furthest = j;
+			} else if(moves[j]>secondMove){
+				secondMove = moves[j];
+			}
+		}
+		for(int j = 0; j<k; j++){
+			double nearest = Double.MAX_VALUE;
+			for(int l = 0; l<k; l++){
+				if(l == j) continue;
+				double distance = distance(ratioCentroids, j*colours, ratioCentroids, l*colours, colours);
+				if(distance != distance) exact = false;
+				if(distance<nearest) nearest = distance;
+			}
+			separation[j] = Math.sqrt(nearest)/2.0;
+		}
+		if(!exact){
+			bounded = false;
+			return;
+		}
+		SPDA_Parallel.forRange(options.threads, 0, rows, Math.max(PARTITION_ROWS, SPDA_Parallel.grain(options.threads, rows)), new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int i = from; i<to; i++){
+					int group = groups[i];
+					upper[i] += moves[group];
+					lower[i] -= group == furthest ? secondMove : furthestMove;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Trains the centroids on random batches of rows, then assigns every row
+	 *
+	 * @param rand		Random numbers following the seeding of the centroids
+	 */
+	private int[] fitMiniBatch(final SPDA_Sample_Table table, Random rand){
+		final int batch = Math.max(1, Math.min(options.miniBatchRows, rows));
+		final int[] batchRows = new int[batch];
+		final int[] batchGroups = new int[batch];
+		final float[] batchRatios = new float[batch*colours];
+		final double[] centroidRatios = new double[k*colours];
+		long[] taken = new long[k];
+		double[] row = new double[colours];
+		for(iterations = 0; iterations<maxIterations; iterations++){
+			for(int b = 0; b<batch; b++){
+				batchRows[b] = rand.nextInt(rows);
+			}
+			ratioCentroids(centroidRatios);
+			SPDA_Parallel.forRange(options.threads, 0, batch, Math.max(PARTITION_ROWS, SPDA_Parallel.grain(options.threads, batch)), new SPDA_Parallel.Body(){
+				public void run(int from, int to){
+					double[] row = new double[colours];
+					for(int b = from; b<to; b++){
+						table.getRow(batchRows[b], row);
+						ratio(row, batchRatios, b*colours);
+						batchGroups[b] = nearest(batchRatios, b*colours, centroidRatios, colours);
+					}
+				}
+			});
+			//Centroids are moved in batch order, so the result does not depend on the number of threads
+			for(int b = 0; b<batch; b++){
+				int group = batchGroups[b];
+				taken[group]++;
+				double step = 1.0/taken[group];
+				double[] centroid = centroids[group];
+				table.getRow(batchRows[b], row);
+				for(int c = 0; c<colours; c++){
+					centroid[c] += (row[c]-centroid[c])*step;
+				}
+			}
+		}
+		int[] result = assign(table);
+		if(options.kMeansLog){
+			int[] counts = new int[k];
+			for(int i = 0; i<result.length; i++){
+				counts[result[i]]++;
+			}
+			log.append("Mini-batch: ").append(iterations).append(" batches of ").append(batch).append(" rows\n");
+			logCentroids(counts);
+		}
+		return result;
+	}
+
+	/**
+	 * Picks the starting centroids by k-means++ seeding on a random sample of the rows. The centroids are copies of the picked rows.
+	 */
+	private void seedPlusPlus(final SPDA_Sample_Table table, Random rand){
+		final int candidates = Math.min(rows, SEEDING_ROWS);
+		final int[] sample = new int[candidates];
+		for(int i = 0; i<candidates; i++){
+			sample[i] = candidates == rows ? i : rand.nextInt(rows);
+		}
+		final float[] sampleRatios = new float[candidates*colours];
+		final double[] nearest = new double[candidates];
+		final double[] picked = new double[colours];
+		Arrays.fill(nearest, Double.MAX_VALUE);
+		SPDA_Parallel.forRange(options.threads, 0, candidates, Math.max(PARTITION_ROWS, SPDA_Parallel.grain(options.threads, candidates)), new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				double[] row = new double[colours];
+				for(int i = from; i<to; i++){
+					table.getRow(sample[i], row);
+					ratio(row, sampleRatios, i*colours);
+				}
+			}
+		});
+		int choice = rand.nextInt(candidates);
+		for(int j = 0; j<k; j++){
+			if(j>0){
+				double total = 0.0;
+				for(int i = 0; i<candidates; i++){
+					total += nearest[i];
+				}
+				if(total>0.0){
+					double target = rand.nextDouble()*total;
+					choice = candidates-1;
+					for(int i = 0; i<candidates; i++){
+						target -= nearest[i];
+						if(target<0.0){
+							choice = i;
+							break;
+						}
+					}
+				} else {
+					choice = rand.nextInt(candidates);
+				}
+			}
+			table.getRow(sample[choice], centroids[j]);
+			for(int c = 0; c<colours; c++){
+				picked[c] = sampleRatios[choice*colours+c];
+			}
+			SPDA_Parallel.forRange(options.threads, 0, candidates, Math.max(PARTITION_ROWS, SPDA_Parallel.grain(options.threads, candidates)), new SPDA_Parallel.Body(){
+				public void run(int from, int to){
+					for(int i = from; i<to; i++){
+						double distance = distance(sampleRatios, i*colours, picked, 0, colours);
+						if(distance != distance) distance = 0.0;
+						if(distance<nearest[i]) nearest[i] = distance;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Releases the state of the fit, keeping only the centroids
+	 */
+	private void release(){
+		ratios = null;
+		columns = null;
+		sums = null;
+		groups = null;
+		upper = null;
+		lower = null;
+	}
+
+	/**
+	 * Assigns each row of a table to the nearest of the fitted centroids
+	 *
+	 * @param table		The rows to assign
+	 * @return		The group of each row
+	 */
+	public int[] assign(final SPDA_Sample_Table table){
+		final int rows = table.getRows();
+		final int colours = table.getChannels();
+		final int[] groups = new int[rows];
+		final double[] ratioCentroids = new double[k*colours];
+		ratioCentroids(ratioCentroids);
+		SPDA_Parallel.forRange(options.threads, 0, rows, Math.max(PARTITION_ROWS, SPDA_Parallel.grain(options.threads, rows)), new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				double[] row = new double[colours];
+				float[] ratio = new float[colours];
+				for(int i = from; i<to; i++){
+					table.getRow(i, row);
+					ratio(row, ratio, 0);
+					groups[i] = nearest(ratio, 0, ratioCentroids, colours);
+				}
+			}
+		});
+		return groups;
+	}
+
+	/**
+	 * @return		The fitted centroids, in the original colour values, arranged group/colour
+	 */
+	public double[][] getCentroids(){
+		return centroids;
+	}
+
+	/**
+	 * @return		Number of iterations run by the last fit
+	 */
+	public int getIterations(){
+		return iterations;
+	}
+
+	/**
+	 * Merges the partition sums in order into new centroids. Groups with no rows keep their centroid.
+	 *
+	 * @return		Total number of rows reassigned
+	 */
+	private int update(double[][] sums, int[][] counts, int[] changes, int colours){
+		int changed = 0;
+		for(int p = 1; p<sums.length; p++){
+			for(int j = 0; j<sums[0].length; j++){
+				sums[0][j] += sums[p][j];
+			}
+			for(int j = 0; j<k; j++){
+				counts[0][j] += counts[p][j];
+			}
+		}
+		for(int p = 0; p<changes.length; p++){
+			changed += changes[p];
+		}
+		for(int j = 0; j<k; j++){
+			if(counts[0][j]>0){
+				for(int c = 0; c<colours; c++){
+					centroids[j][c] = sums[0][j*colours+c]/counts[0][j];
+				}
+			}
+		}
+		return changed;
+	}
+
+	private void logCentroids(int[] counts){
+		for(int j = 0; j<k; j++){
+			log.append("Group ").append(j).append(": ").append(counts[j]);
+			for(int c = 0; c<centroids[j].length; c++){
+				log.append(", C").append(c+1).append(": ").append(centroids[j][c]);
+			}
+			log.append('\n');
+		}
+		IJ.log(log.toString());
+	}
+
+	/**
+	 * Finds the nearest centroid to a row in ratio colour space. As in getColourDistance, a row or centroid whose values cannot be
+	 * divided by their largest value is at distance 0.
+	 */
+	static int nearest(float[] ratios, int offset, double[] ratioCentroids, int colours){
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		int groups = ratioCentroids.length/colours;
+		for(int j = 0, centroid = 0; j<groups; j++, centroid += colours){
+			double distance = distance(ratios, offset, ratioCentroids, centroid, colours);
+			if(distance != distance) distance = 0.0;
+			if(distance<bestDistance){
+				bestDistance = distance;
+				best = j;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return		The squared distance between a row and a centroid, in ratio colour space
+	 */
+	static double distance(float[] ratios, int offset, double[] ratioCentroids, int centroid, int colours){
+		double distance = 0.0;
+		for(int c = 0; c<colours; c++){
+			double difference = ratios[offset+c]-ratioCentroids[centroid+c];
+			distance += difference*difference;
+		}
+		return distance;
+	}
+
+	/**
+	 * @return		The squared distance between two centroids, in ratio colour space
+	 */
+	static double distance(double[] first, int offset, double[] second, int centroid, int colours){
+		double distance = 0.0;
+		for(int c = 0; c<colours; c++){
+			double difference = first[offset+c]-second[centroid+c];
+			distance += difference*difference;
+		}
+		return distance;
+	}
+
+	/**
+	 * The ratio values of every row of a table, arranged row/colour
+	 */
+	private float[] ratios(final SPDA_Sample_Table table){
+		final int rows = table.getRows();
+		final int colours = table.getChannels();
+		final float[] ratios = new float[rows*colours];
+		SPDA_Parallel.forRange(options.threads, 0, rows, Math.max(PARTITION_ROWS, SPDA_Parallel.grain(options.threads, rows)), new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				double[] row = new double[colours];
+				for(int i = from; i<to; i++){
+					table.getRow(i, row);
+					ratio(row, ratios, i*colours);
+				}
+			}
+		});
+		return ratios;
+	}
+
+	/**
+	 * Divides a row by its largest value, writing the result into an array at an offset
+	 */
+	static void ratio(double[] row, float[] out, int offset){
+		double max = 0.0;
+		for(int c = 0; c<row.length; c++){
+			if(row[c]>=max) max = row[c];
+		}
+		for(int c = 0; c<row.length; c++){
+			out[offset+c] = (float) (row[c]/max);
+		}
+	}
+
+	/**
+	 * The ratio values of the centroids, arranged group/colour
+	 */
+	private void ratioCentroids(double[] out){
+		int colours = centroids[0].length;
+		for(int j = 0; j<k; j++){
+			double max = 0.0;
+			for(int c = 0; c<colours; c++){
+				if(centroids[j][c]>=max) max = centroids[j][c];
+			}
+			for(int c = 0; c<colours; c++){
+				out[j*colours+c] = centroids[j][c]/max;
+			}
+		}
+	}
+
+	private static double[][] columns(SPDA_Sample_Table table){
+		double[][] columns = new double[table.getChannels()][];
+		for(int c = 0; c<columns.length; c++){
+			columns[c] = table.getColumn(c);
+		}
+		return columns;
+	}
+
+	/**
+	 * Number of partitions of a table - this depends only on the number of rows, so the order of the sums is always the same
+	 */
+	static int partitions(int rows){
+		return Math.max(1, Math.min(PARTITIONS, rows/PARTITION_ROWS));
+	}
+
+	/**
+	 * End of a partition (exclusive), or 0 for partition -1
+	 */
+	static int partitionEnd(int p, int partitions, int rows){
+		return (int) ((long) rows*(p+1)/partitions);
+	}
+}
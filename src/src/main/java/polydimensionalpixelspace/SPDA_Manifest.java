@@ -0,0 +1,303 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+/**
+ *
+ * <p>An index of the TIFF images in a directory, built once before a batch is loaded: the dimensions and z calibration of each image, and a
+ * hash of the images by name, so that positional files can be matched to their masks and templates without searching the directory listing
+ * for each one.</p>
+ *
+ * <p>Dimensions are read from the TIFF header and the ImageJ description only, without opening the image. The index is cached in the directory
+ * (CACHE_NAME), and an image is only read again if its size or modification time has changed. Images that could not be read are not 
+ * cached, so they are tried again next time. If the cache cannot be written, as in a read-only directory, the index is simply rebuilt 
+ * next time.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+class SPDA_Manifest {
+	/**
+	 * Name of the cache file written in the indexed directory
+	 */
+	static final String CACHE_NAME = ".spda_manifest";
+	private static final String HEADER = "SPDA_Manifest\t1";
+	private final String dir;
+	private final String[] names;
+	private final HashMap<String, Entry> byName = new HashMap<String, Entry>();
+	private final HashMap<String, Entry> byBaseName = new HashMap<String, Entry>();
+
+	/**
+	 * The dimensions of one image
+	 */
+	static class Entry {
+		String name;
+		long length, modified;
+		int width, height, slices, frames;
+		/**
+		 * Multiple of z calibration compared to xy calibration
+		 */
+		double zDiff;
+
+		/**
+		 * @return		The dimensions in the order used by processPositional: z calibration difference, x, y, z, t
+		 */
+		double[] getDimensions(){
+			return new double[]{zDiff, width, height, slices, frames};
+		}
+	}
+
+	private SPDA_Manifest(String dir, String[] names){
+		this.dir = dir;
+		this.names = names;
+	}
+
+	/**
+	 * Indexes the TIFF images of a directory, reusing the cached dimensions of images that have not changed
+	 *
+	 * @param dir		Path to directory, ending with a separator
+	 * @param threads	Number of threads used to read the headers of new or changed images
+	 * @return		The index
+	 */
+	static SPDA_Manifest of(String dir, int threads){
+		File[] files = new File(dir).listFiles();
+		if(files == null) files = new File[0];
+		QuickFilter filter = new QuickFilter(SPDA_Pixelspace.IMAGEFORMATS);
+		int count = 0;
+		for(int i = 0; i<files.length; i++){
+			if(files[i].isFile() && filter.accept(files[i].getParentFile(), files[i].getName())) files[count++] = files[i];
+		}
+		files = Arrays.copyOf(files, count);
+		String[] names = new String[count];
+		for(int i = 0; i<count; i++){
+			names[i] = files[i].getName();
+		}
+		Arrays.sort(names);
+
+		final SPDA_Manifest manifest = new SPDA_Manifest(dir, names);
+		HashMap<String, Entry> cached = readCache(dir);
+		final Entry[] entries = new Entry[count];
+		final boolean[] probe = new boolean[count];
+		boolean changed = cached.size() != count;
+		for(int i = 0; i<count; i++){
+			File file = new File(dir+names[i]);
+			Entry entry = cached.get(names[i]);
+			if(entry == null || entry.length != file.length() || entry.modified != file.lastModified()){
+				entry = new Entry();
+				entry.name = names[i];
+				entry.length = file.length();
+				entry.modified = file.lastModified();
+				probe[i] = true;
+				changed = true;
+			}
+			entries[i] = entry;
+		}
+		SPDA_Parallel.forRange(threads, 0, count, SPDA_Parallel.grain(threads, count), new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int i = from; i<to; i++){
+					if(probe[i]) manifest.probe(entries[i]);
+				}
+			}
+		});
+		for(int i = 0; i<count; i++){
+			manifest.byName.put(entries[i].name, entries[i]);
+			String base = baseName(entries[i].name);
+			if(!manifest.byBaseName.containsKey(base)) manifest.byBaseName.put(base, entries[i]);
+		}
+		if(changed) manifest.writeCache();
+		return manifest;
+	}
+
+	/**
+	 * @return		The name up to the first '.', by which positional files are matched to images
+	 */
+	static String baseName(String name){
+		return name.split("\\.")[0];
+	}
+
+	/**
+	 * @return		The sorted names of the images in the directory
+	 */
+	String[] getNames(){
+		return names;
+	}
+
+	/**
+	 * Finds the image matching a positional file. An image with the same base name is found directly; otherwise the first image (by name)
+	 * that starts with the base name is used, as before.
+	 *
+	 * @param fileName	Name of the positional file
+	 * @param anywhere	If true, and no image starts with the base name, the first image that contains it anywhere in its name is used
+	 * @return		The image, or null if none matches
+	 */
+	Entry find(String fileName, boolean anywhere){
+		String base = baseName(fileName);
+		Entry entry = byBaseName.get(base);
+		if(entry != null) return entry;
+		for(int i = 0; i<names.length; i++){
+			if(names[i].startsWith(base)) return byName.get(names[i]);
+		}
+		if(anywhere){
+			for(int i = 0; i<names.length; i++){
+				if(names[i].contains(base)) return byName.get(names[i]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the dimensions of an image from its TIFF header and ImageJ description, as ImageJ would when opening it. If the header cannot be
+	 * read, the image is opened as a virtual stack instead.
+	 */
+	private void probe(Entry entry){
+		try{
+			FileInfo[] info = new TiffDecoder(dir, entry.name).getTiffInfo();
+			if(info != null && info.length>0){
+				fromHeader(entry, info);
+				return;
+			}
+		} catch (IOException e){
+			IJ.log("Could not read the TIFF header of "+dir+entry.name+": "+e.getMessage());
+		}
+		ImagePlus imp = IJ.openVirtual(dir+entry.name);
+		if(imp == null){
+			IJ.log("Could not open "+dir+entry.name);
+			return;
+		}
+		Calibration calib = imp.getLocalCalibration();
+		entry.zDiff = calib.pixelDepth/calib.pixelWidth;
+		entry.width = imp.getWidth();
+		entry.height = imp.getHeight();
+		entry.slices = imp.getNSlices();
+		entry.frames = imp.getNFrames();
+		imp.close();
+	}
+
+	private static void fromHeader(Entry entry, FileInfo[] info){
+		FileInfo fi = info[0];
+		String description = fi.description;
+		boolean imageJ = description != null && description.startsWith("ImageJ");
+		//An ImageJ stack has one IFD with its size in the description; other stacks have one IFD per image
+		int images = imageJ ? Math.max(1, fi.nImages) : info.length;
+		int slices = images, frames = 1;
+		String unit = fi.unit;
+		double pixelDepth = fi.pixelDepth;
+		if(imageJ){
+			int c = property(description, "channels", 1);
+			int z = property(description, "slices", 1);
+			int t = property(description, "frames", 1);
+			if(c*z*t == images){
+				slices = z;
+				frames = t;
+			}
+			String descriptionUnit = text(description, "unit");
+			if(descriptionUnit != null) unit = descriptionUnit;
+			String spacing = text(description, "spacing");
+			if(spacing != null){
+				try{
+					pixelDepth = Math.abs(Double.parseDouble(spacing));
+				} catch (NumberFormatException e){
+				}
+			}
+		}
+		entry.width = fi.width;
+		entry.height = fi.height;
+		entry.slices = slices;
+		entry.frames = frames;
+		//As ImageJ, the image is only calibrated if it has a unit
+		entry.zDiff = (fi.pixelWidth>0.0 && unit != null) ? pixelDepth/fi.pixelWidth : 1.0;
+	}
+
+	/**
+	 * @return		The value of a key=value line of an ImageJ description, or null if it is absent
+	 */
+	private static String text(String description, String key){
+		String[] lines = description.split("\n");
+		for(int i = 0; i<lines.length; i++){
+			if(lines[i].startsWith(key+"=")) return lines[i].substring(key.length()+1).trim();
+		}
+		return null;
+	}
+
+	private static int property(String description, String key, int defaultValue){
+		String value = text(description, key);
+		if(value == null) return defaultValue;
+		try{
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e){
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Reads the cached entries of a directory, or none if there is no readable cache
+	 */
+	private static HashMap<String, Entry> readCache(String dir){
+		HashMap<String, Entry> cached = new HashMap<String, Entry>();
+		File file = new File(dir+CACHE_NAME);
+		if(!file.isFile()) return cached;
+		BufferedReader reader = null;
+		try{
+			reader = new BufferedReader(new FileReader(file));
+			if(!HEADER.equals(reader.readLine())) return cached;
+			while(true){
+				String line = reader.readLine();
+				if(line == null) break;
+				String[] parts = line.split("\t");
+				if(parts.length != 8) continue;
+				Entry entry = new Entry();
+				entry.name = parts[0];
+				entry.length = Long.parseLong(parts[1]);
+				entry.modified = Long.parseLong(parts[2]);
+				entry.width = Integer.parseInt(parts[3]);
+				entry.height = Integer.parseInt(parts[4]);
+				entry.slices = Integer.parseInt(parts[5]);
+				entry.frames = Integer.parseInt(parts[6]);
+				entry.zDiff = Double.parseDouble(parts[7]);
+				if(entry.width>0) cached.put(entry.name, entry);
+			}
+		} catch (IOException e){
+			cached.clear();
+		} catch (NumberFormatException e){
+			cached.clear();
+		} finally {
+			try{
+				if(reader != null) reader.close();
+			} catch (IOException e){
+			}
+		}
+		return cached;
+	}
+
+	private void writeCache(){
+		PrintWriter writer = null;
+		try{
+			writer = new PrintWriter(new FileWriter(dir+CACHE_NAME));
+			writer.println(HEADER);
+			for(int i = 0; i<names.length; i++){
+				Entry entry = byName.get(names[i]);
+				//An image that could not be read is left out, so that it is read again next time
+				if(entry.width == 0) continue;
+				writer.println(entry.name+"\t"+entry.length+"\t"+entry.modified+"\t"+entry.width+"\t"+entry.height+"\t"+entry.slices+"\t"+entry.frames+"\t"+entry.zDiff);
+			}
+		} catch (IOException e){
+			//The directory may be read-only; the index is rebuilt next time
+		} finally {
+			if(writer != null) writer.close();
+		}
+	}
+}
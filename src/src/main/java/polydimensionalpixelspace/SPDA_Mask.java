@@ -0,0 +1,293 @@
+package src.main.java.polydimensionalpixelspace;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ *
+ * <p>The region mask of an image: the index of the region each voxel belongs to, with 0 marking voxels outside every region.
+ * The number of voxels and the bounding box of each region (in each frame) are found once, when the mask is created, so that
+ * the blurring and sampling do not need to scan the mask for them.</p>
+ *
+ * <p>Masks read from an image are stored as one byte per voxel, or one short per voxel if there are more than 255 regions.
+ * When no mask is used, allInclusive gives a mask that places every voxel in region 1 without storing anything.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public abstract class SPDA_Mask {
+	protected final int width, height, slices, frames;
+
+	protected SPDA_Mask(int width, int height, int slices, int frames){
+		this.width = width;
+		this.height = height;
+		this.slices = slices;
+		this.frames = frames;
+	}
+
+	/**
+	 * @return		The region of a voxel (0 indexed coordinates), or 0 if it is in no region
+	 */
+	public abstract int get(int x, int y, int z, int t);
+
+	/**
+	 * @return		The highest region index in the mask
+	 */
+	public abstract int getRegions();
+
+	/**
+	 * @return		The number of voxels in a region (0 gives the number outside every region)
+	 */
+	public abstract long getCount(int region);
+
+	/**
+	 * @param region	Region index, from 1
+	 * @return		The bounding box of a region within a frame, which is empty if the region does not appear in the frame. This should not be modified.
+	 */
+	public abstract SPDA_Box getBox(int region, int t);
+
+	/**
+	 * @return		The bounding box of all the regions within a frame. This should not be modified.
+	 */
+	public abstract SPDA_Box getBounds(int t);
+
+	/**
+	 * Creates a mask that places every voxel in region 1
+	 */
+	public static SPDA_Mask allInclusive(int width, int height, int slices, int frames){
+		return new Constant(width, height, slices, frames);
+	}
+
+	/**
+	 * Reads the mask from the last channel of an image
+	 *
+	 * @param imp	Image whose last channel is the mask
+	 * @return	The mask
+	 */
+	public static SPDA_Mask fromImage(ImagePlus imp){
+		ImageStack stack = imp.getStack();
+		int slices = imp.getNSlices();
+		int frames = imp.getNFrames();
+		int maskChannel = imp.getNChannels();
+
+		ImageProcessor[] ips = new ImageProcessor[slices*frames];
+		int maxRegion = 0;
+		for(int t = 0; t<frames; t++){
+			for(int z = 0; z<slices; z++){
+				ImageProcessor ip = stack.getProcessor(imp.getStackIndex(maskChannel,z+1,t+1));
+				ips[t*slices+z] = ip;
+				maxRegion = Math.max(maxRegion, maxRegion(ip));
+			}
+		}
+		return fromPlanes(ips, slices, frames, maxRegion, imp.getTitle());
+	}
+
+	/**
+	 * Creates a mask from planes that have already been read, as when the mask is read in the same pass as the thresholded channels
+	 *
+	 * @param ips		Mask planes, arranged frame*slices+slice
+	 * @param slices
+	 * @param frames
+	 * @param maxRegion	The highest value in any plane (see maxRegion)
+	 * @param title		Title of the image, for the error message
+	 * @return	The mask
+	 */
+	static SPDA_Mask fromPlanes(ImageProcessor[] ips, int slices, int frames, int maxRegion, String title){
+		if(maxRegion>65535){
+			throw new IllegalArgumentException("Mask of "+title+" has more than 65535 regions");
+		}
+		int width = ips[0].getWidth();
+		int height = ips[0].getHeight();
+		Labelled mask = new Labelled(width, height, slices, frames, maxRegion);
+		for(int p = 0; p<ips.length; p++){
+			mask.fill(p, ips[p]);
+		}
+		mask.index();
+		return mask;
+	}
+
+	/**
+	 * @return	The highest value in a mask plane. 8 and 16-bit planes are read directly from their pixel arrays, and the labels of a 32-bit 
+	 * 			plane are its values truncated to whole numbers.
+	 */
+	static int maxRegion(ImageProcessor ip){
+		Object pixels = ip.getPixels();
+		int max = 0;
+		if(pixels instanceof byte[]){
+			byte[] bytes = (byte[]) pixels;
+			for(int i = 0; i<bytes.length; i++){
+				max = Math.max(max, bytes[i] & 0xff);
+			}
+		} else if(pixels instanceof short[]){
+			short[] shorts = (short[]) pixels;
+			for(int i = 0; i<shorts.length; i++){
+				max = Math.max(max, shorts[i] & 0xffff);
+			}
+		} else if(pixels instanceof float[]){
+			float[] floats = (float[]) pixels;
+			for(int i = 0; i<floats.length; i++){
+				max = Math.max(max, (int) floats[i]);
+			}
+		} else {
+			int width = ip.getWidth();
+			int height = ip.getHeight();
+			for(int y = 0; y<height; y++){
+				for(int x = 0; x<width; x++){
+					max = Math.max(max, ip.getPixel(x,y));
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * A mask that places every voxel in region 1
+	 */
+	private static class Constant extends SPDA_Mask {
+		private final SPDA_Box box;
+
+		Constant(int width, int height, int slices, int frames){
+			super(width, height, slices, frames);
+			box = new SPDA_Box(0,0,0,width,height,slices);
+		}
+
+		public int get(int x, int y, int z, int t){
+			return 1;
+		}
+
+		public int getRegions(){
+			return 1;
+		}
+
+		public long getCount(int region){
+			long voxels = (long)width*height*slices*frames;
+			if(region == 1) return voxels;
+			return 0;
+		}
+
+		public SPDA_Box getBox(int region, int t){
+			if(region == 1) return box;
+			return new SPDA_Box();
+		}
+
+		public SPDA_Box getBounds(int t){
+			return box;
+		}
+	}
+
+	/**
+	 * A mask stored as one byte or short per voxel, in planes arranged frame/slice, with rows running along X
+	 */
+	private static class Labelled extends SPDA_Mask {
+		private final int regions;
+		private byte[][] bytePlanes;
+		private short[][] shortPlanes;
+		private long[] counts;
+		private SPDA_Box[][] boxes;
+		private SPDA_Box[] bounds;
+
+		Labelled(int width, int height, int slices, int frames, int regions){
+			super(width, height, slices, frames);
+			this.regions = regions;
+			if(regions<=255){
+				bytePlanes = new byte[slices*frames][width*height];
+			} else {
+				shortPlanes = new short[slices*frames][width*height];
+			}
+		}
+
+		void set(int plane, int i, int region){
+			if(bytePlanes != null){
+				bytePlanes[plane][i] = (byte) region;
+			} else {
+				shortPlanes[plane][i] = (short) region;
+			}
+		}
+
+		/**
+		 * Copies a plane of the mask from an image, straight from its pixel array if it is 8 or 16-bit. The values of a 32-bit plane are 
+		 * truncated to whole numbers, as by maxRegion.
+		 */
+		void fill(int plane, ImageProcessor ip){
+			Object pixels = ip.getPixels();
+			if(pixels instanceof byte[] && bytePlanes != null){
+				System.arraycopy(pixels, 0, bytePlanes[plane], 0, width*height);
+			} else if(pixels instanceof short[]){
+				short[] shorts = (short[]) pixels;
+				for(int i = 0; i<shorts.length; i++){
+					set(plane, i, shorts[i] & 0xffff);
+				}
+			} else if(pixels instanceof float[]){
+				float[] floats = (float[]) pixels;
+				for(int i = 0; i<floats.length; i++){
+					set(plane, i, Math.max(0, (int) floats[i]));
+				}
+			} else {
+				for(int y = 0; y<height; y++){
+					for(int x = 0; x<width; x++){
+						set(plane, y*width+x, Math.max(0, ip.getPixel(x,y)));
+					}
+				}
+			}
+		}
+
+		private int get(int plane, int i){
+			if(bytePlanes != null){
+				return bytePlanes[plane][i] & 0xff;
+			}
+			return shortPlanes[plane][i] & 0xffff;
+		}
+
+		/**
+		 * Counts the voxels and finds the bounding boxes of each region
+		 */
+		void index(){
+			counts = new long[regions+1];
+			boxes = new SPDA_Box[regions][frames];
+			bounds = new SPDA_Box[frames];
+			for(int t = 0; t<frames; t++){
+				bounds[t] = new SPDA_Box();
+				for(int r = 0; r<regions; r++){
+					boxes[r][t] = new SPDA_Box();
+				}
+				for(int z = 0; z<slices; z++){
+					int plane = t*slices+z;
+					for(int y = 0; y<height; y++){
+						for(int x = 0; x<width; x++){
+							int region = get(plane, y*width+x);
+							counts[region]++;
+							if(region>0) boxes[region-1][t].include(x, y, z);
+						}
+					}
+				}
+				for(int r = 0; r<regions; r++){
+					bounds[t].include(boxes[r][t]);
+				}
+			}
+		}
+
+		public int get(int x, int y, int z, int t){
+			return get(t*slices+z, y*width+x);
+		}
+
+		public int getRegions(){
+			return regions;
+		}
+
+		public long getCount(int region){
+			if(region<0 || region>regions) return 0;
+			return counts[region];
+		}
+
+		public SPDA_Box getBox(int region, int t){
+			if(region<1 || region>regions) return new SPDA_Box();
+			return boxes[region-1][t];
+		}
+
+		public SPDA_Box getBounds(int t){
+			return bounds[t];
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package src.main.java.polydimensionalpixelspace;
+
+/**
+ *
+ * <p>A map of which voxels are occupied in each channel, packed as one bit per voxel into a single long[]. The map is laid out as
+ * frame/slice/channel/row, and each row starts on a new word, so that a row of a plane can be read a word (64 pixels) at a time.</p>
+ *
+ * <p>Bit x%64 of word rowIndex(y,z,c,t) + x/64 holds voxel (x,y) of channel c, slice z and frame t. Coordinates are 0-indexed.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_Occupancy {
+	private final int width, height, slices, channels, frames, wordsPerRow;
+	private final long[] words;
+
+	public SPDA_Occupancy(int width, int height, int slices, int channels, int frames){
+		this.width = width;
+		this.height = height;
+		this.slices = slices;
+		this.channels = channels;
+		this.frames = frames;
+		wordsPerRow = (width+63)>>>6;
+		long length = (long)wordsPerRow*height*channels*slices*frames;
+		if(length>Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Image too large for occupancy map: "+width+"x"+height+"x"+slices+"x"+channels+"x"+frames);
+		}
+		words = new long[(int)length];
+	}
+
+	/**
+	 * Index of the first word of a row
+	 */
+	public int rowIndex(int y, int z, int c, int t){
+		return (((t*slices+z)*channels+c)*height+y)*wordsPerRow;
+	}
+
+	public boolean get(int x, int y, int z, int c, int t){
+		return (words[rowIndex(y,z,c,t)+(x>>>6)] & (1L<<x)) != 0;
+	}
+
+	public void set(int x, int y, int z, int c, int t){
+		words[rowIndex(y,z,c,t)+(x>>>6)] |= 1L<<x;
+	}
+
+	/**
+	 * Sets a voxel as occupied
+	 *
+	 * @return	True if the voxel was not already occupied
+	 */
+	public boolean add(int x, int y, int z, int c, int t){
+		int i = rowIndex(y,z,c,t)+(x>>>6);
+		long bit = 1L<<x;
+		boolean added = (words[i] & bit) == 0;
+		words[i] |= bit;
+		return added;
+	}
+
+	/**
+	 * Lists the occupied voxels of a section of a row, reading a word at a time so that empty stretches are skipped quickly
+	 *
+	 * @param from		First column of the section
+	 * @param to		End of the section (exclusive)
+	 * @param columns	Buffer for the occupied columns, in ascending order. Must hold to-from values.
+	 * @return		The number of occupied columns
+	 */
+	public int getRow(int y, int z, int c, int t, int from, int to, int[] columns){
+		if(to<=from) return 0;
+		int rowIndex = rowIndex(y,z,c,t);
+		int first = from>>>6;
+		int last = (to-1)>>>6;
+		int count = 0;
+		for(int w = first; w<=last; w++){
+			long word = words[rowIndex+w];
+			if(w == first) word &= -1L<<from;
+			if(w == last) word &= -1L>>>(63-((to-1)&63));
+			while(word != 0){
+				columns[count++] = (w<<6)+Long.numberOfTrailingZeros(word);
+				word &= word-1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Direct access to the packed words, for bulk reading (see rowIndex)
+	 */
+	public long[] getWords(){
+		return words;
+	}
+}
@@ -0,0 +1,113 @@
+package src.main.java.polydimensionalpixelspace;
+
+/**
+ *
+ * SPDA_Options is the generic container for the optional settings of a Pixelspace analysis - those that are not required for the
+ * original analysis, and so are not passed through as individual parameters. The defaults reproduce the original behaviour.
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ */
+public class SPDA_Options {
+	public int blurMode = SPDA_Pixelspace.BLUR_CONVOLVE;
+	/**
+	 * Number of threads for the parallel parts of the analysis. 1 reproduces the original single-threaded behaviour, 0 uses all available processors.
+	 */
+	public int threads = 1;
+	/**
+	 * Which rows of the sample table are used to fit the PCA or k-means (see SPDA_Sampling). Every row is still projected or assigned.
+	 */
+	public int sampling = SPDA_Pixelspace.SAMPLE_ALL;
+	/**
+	 * Spacing of the sampling grid in X and Y, and in Z
+	 */
+	public int gridStep = 1, gridStepZ = 1;
+	/**
+	 * Number of rows of each image used for fitting by random and stratified sampling. The k-means of a global batch never fits on more 
+	 * than this many rows of each image, even when every row is sampled.
+	 */
+	public int sampleRows = 100000;
+	/**
+	 * Seed for the random parts of the analysis, so that results can be repeated
+	 */
+	public long seed = 0;
+	/**
+	 * If true, a global batch keeps only the statistics of each image while fitting the PCA, and samples each image again to project it. 
+	 * This takes longer, but only one sample table is held at a time. A global k-means batch always samples each image again to assign it.
+	 */
+	public boolean lowMemory = false;
+	/**
+	 * Number of principal components to find and project onto, or 0 for all. With many colours, finding only the first few is much faster.
+	 */
+	public int components = 0;
+	/**
+	 * Number of principal components drawn in the output image, or 0 for all that are projected
+	 */
+	public int imageComponents = 3;
+	/**
+	 * How k-means assigns rows to centroids (see SPDA_KMeans)
+	 */
+	public int kMeansMethod = SPDA_Pixelspace.KMEANS_LLOYD;
+	/**
+	 * How the starting k-means centroids are picked: random rows, or k-means++ seeding
+	 */
+	public int kMeansInit = SPDA_Pixelspace.KMEANS_INIT_RANDOM;
+	/**
+	 * Number of rows in each batch of mini-batch k-means
+	 */
+	public int miniBatchRows = 10000;
+	/**
+	 * If true, k-means logs the number of rows reassigned in each iteration and the final centroids
+	 */
+	public boolean kMeansLog = true;
+	/**
+	 * If set, the PCA is not fitted: each image is projected onto this stored model
+	 */
+	public SPDA_PCA_Model model = null;
+	/**
+	 * If set, the results of each image are passed to this as soon as they are made instead of being returned together, so that a large 
+	 * batch can be saved and released one image at a time (see SPDA_Pixelspace.savingHandler)
+	 */
+	public ResultsHandler resultsHandler = null;
+
+	/**
+	 * Receives the results of each image of a batch
+	 */
+	public interface ResultsHandler {
+		/**
+		 * @param result	Results of one image
+		 * @param index		Position of the image in the batch, from 0
+		 */
+		void handle(SPDA_Results result, int index);
+	}
+
+	public SPDA_Options(){
+
+	}
+
+	/**
+	 * Creates a copy of these options
+	 *
+	 * @return a duplicate SPDA_Options
+	 */
+	public SPDA_Options duplicate(){
+		SPDA_Options dup = new SPDA_Options();
+		dup.blurMode = this.blurMode;
+		dup.threads = this.threads;
+		dup.sampling = this.sampling;
+		dup.gridStep = this.gridStep;
+		dup.gridStepZ = this.gridStepZ;
+		dup.sampleRows = this.sampleRows;
+		dup.seed = this.seed;
+		dup.lowMemory = this.lowMemory;
+		dup.components = this.components;
+		dup.imageComponents = this.imageComponents;
+		dup.kMeansMethod = this.kMeansMethod;
+		dup.kMeansInit = this.kMeansInit;
+		dup.miniBatchRows = this.miniBatchRows;
+		dup.kMeansLog = this.kMeansLog;
+		dup.model = this.model;
+		dup.resultsHandler = this.resultsHandler;
+		return dup;
+	}
+}
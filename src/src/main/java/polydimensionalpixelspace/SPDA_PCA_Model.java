@@ -0,0 +1,199 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ *
+ * <p>A fitted PCA, which can be saved and loaded so that new images can be projected onto the components of a reference cohort without
+ * fitting it again. The model holds the names of the colours in order (see SPDA_PS_Image.getChannelNames), the mean and scaling (standard deviation for a correlation PCA, 1 for a
+ * covariance PCA) of each colour in the fitted rows, the sorted eigenvalues and the eigenvectors, arranged colour/component.</p>
+ *
+ * <p>The projection used by getPCAResults only needs the eigenvectors; the means and scaling record the fitted data.</p>
+ *
+ * <p>Models are saved as tab separated text, one labelled line per field, with the eigenvectors as one line per colour.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_PCA_Model {
+	public String[] channelNames;
+	public boolean covariance;
+	public long rows;
+	public double[] means, scaling, eigenValues;
+	/**
+	 * Sum of all the eigenvalues, including those of components that were not kept
+	 */
+	public double variance;
+	public double[][] eigenVec;
+
+	public SPDA_PCA_Model(){
+
+	}
+
+	/**
+	 * Creates a model from the statistics of the fitted rows and the sorted components
+	 *
+	 * @param statistics	Statistics of the fitted rows
+	 * @param covariance	True if the PCA used the covariance matrix, false if the correlation matrix
+	 * @param eigenValues	Sorted eigenvalues
+	 * @param eigenVec	Eigenvectors, arranged colour/component
+	 * @param variance	Sum of all the eigenvalues
+	 */
+	public SPDA_PCA_Model(SPDA_Covariance statistics, boolean covariance, double[] eigenValues, double[][] eigenVec, double variance){
+		//The colours are named by their number until the names of the fitted image are set
+		int channels = statistics.getChannels();
+		this.covariance = covariance;
+		this.eigenValues = eigenValues;
+		this.eigenVec = eigenVec;
+		this.variance = variance;
+		rows = statistics.getCount();
+		channelNames = new String[channels];
+		means = new double[channels];
+		scaling = new double[channels];
+		for(int c = 0; c<channels; c++){
+			channelNames[c] = "C"+(c+1);
+			means[c] = statistics.getMean(c);
+			scaling[c] = covariance ? 1.0 : Math.sqrt(statistics.covariance(c,c));
+		}
+	}
+
+	public int getChannels(){
+		return channelNames.length;
+	}
+
+	/**
+	 * @return		False if the colours are only named by their number (C1, C2...), as for thresholded images, so that only their number can be checked
+	 */
+	public boolean isNamed(){
+		for(int c = 0; c<channelNames.length; c++){
+			if(!channelNames[c].equals("C"+(c+1))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a results template for getPCAResults from the model
+	 *
+	 * @return	Results holding the eigenvectors and the eigenvector table of the model
+	 */
+	public SPDA_Results toResults(){
+		SPDA_Results results = new SPDA_Results();
+		results.eigenVec = eigenVec;
+		results.eigenVectorTable = SPDA_Pixelspace.eigenTable(eigenValues, eigenVec, variance);
+		results.model = this;
+		return results;
+	}
+
+	/**
+	 * Saves the model as a text file
+	 *
+	 * @param path		Path of the file
+	 * @throws IOException	If the file cannot be written
+	 */
+	public void save(String path) throws IOException{
+		PrintWriter writer = new PrintWriter(path);
+		try{
+			writer.println("SPDA_PCA_Model\t1");
+			writer.println("matrix\t"+(covariance ? "Covariance" : "Correlation"));
+			writer.println("rows\t"+rows);
+			writer.println(line("channels", channelNames));
+			writer.println(line("means", means));
+			writer.println(line("scaling", scaling));
+			writer.println(line("eigenvalues", eigenValues));
+			writer.println("variance\t"+variance);
+			for(int c = 0; c<eigenVec.length; c++){
+				writer.println(line("eigenvector", eigenVec[c]));
+			}
+			if(writer.checkError()){
+				throw new IOException("Could not write "+path);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Loads a model saved by save
+	 *
+	 * @param path		Path of the file
+	 * @return		The model
+	 * @throws IOException	If the file cannot be read or is not a valid model
+	 */
+	public static SPDA_PCA_Model load(String path) throws IOException{
+		SPDA_PCA_Model model = new SPDA_PCA_Model();
+		ArrayList<double[]> vectors = new ArrayList<double[]>();
+		BufferedReader br = new BufferedReader(new FileReader(path));
+		try{
+			String line = br.readLine();
+			if(line == null || !line.startsWith("SPDA_PCA_Model")){
+				throw new IOException(path+" is not a PCA model");
+			}
+			while((line = br.readLine()) != null){
+				if(line.trim().length() == 0) continue;
+				String[] fields = line.split("\t");
+				String key = fields[0];
+				if(key.equals("matrix")){
+					model.covariance = fields[1].equals("Covariance");
+				} else if(key.equals("rows")){
+					model.rows = Long.parseLong(fields[1]);
+				} else if(key.equals("channels")){
+					model.channelNames = new String[fields.length-1];
+					System.arraycopy(fields, 1, model.channelNames, 0, fields.length-1);
+				} else if(key.equals("means")){
+					model.means = values(fields);
+				} else if(key.equals("scaling")){
+					model.scaling = values(fields);
+				} else if(key.equals("eigenvalues")){
+					model.eigenValues = values(fields);
+				} else if(key.equals("variance")){
+					model.variance = Double.parseDouble(fields[1]);
+				} else if(key.equals("eigenvector")){
+					vectors.add(values(fields));
+				}
+			}
+		} catch(NumberFormatException e){
+			throw new IOException("Invalid number in PCA model "+path);
+		} finally {
+			br.close();
+		}
+		if(model.channelNames == null || model.eigenValues == null || vectors.size() != model.channelNames.length){
+			throw new IOException("Incomplete PCA model "+path);
+		}
+		model.eigenVec = vectors.toArray(new double[vectors.size()][]);
+		if(model.variance == 0.0){
+			for(int i = 0; i<model.eigenValues.length; i++){
+				model.variance += model.eigenValues[i];
+			}
+		}
+		return model;
+	}
+
+	private static String line(String key, double[] values){
+		StringBuilder sb = new StringBuilder(key);
+		for(int i = 0; i<values.length; i++){
+			sb.append('\t').append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	private static String line(String key, String[] values){
+		StringBuilder sb = new StringBuilder(key);
+		for(int i = 0; i<values.length; i++){
+			sb.append('\t').append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	private static double[] values(String[] fields){
+		double[] values = new double[fields.length-1];
+		for(int i = 1; i<fields.length; i++){
+			values[i-1] = Double.parseDouble(fields[i]);
+		}
+		return values;
+	}
+}
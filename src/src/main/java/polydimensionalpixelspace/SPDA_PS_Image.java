@@ -14,7 +14,7 @@ package src.main.java.polydimensionalpixelspace;
  * 
  */
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import ij.CompositeImage;
@@ -26,25 +26,127 @@ import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
-import src.main.java.colordistance.Colour_Distance_Analysis;
+import ij.process.ShortProcessor;
 
 public abstract class SPDA_PS_Image{
 	protected int width,height,channels, frames, slices;
 	protected double zDiff;
 	protected String path, title;
 	protected boolean useMask, splitMask;
-	protected ArrayList<int[]> coordinates;
-	protected double[][] proportions;
-	protected boolean[][][][][] locationMap;
-	protected int[][][][] mask;
+	protected SPDA_Sample_Table samples;
+	protected SPDA_Covariance statistics;
+	/**
+	 * Occupied voxels of each channel. This was a boolean[][][][][] (X/Y/Slice/Channel/Frame) before it was packed into bits: subclasses 
+	 * outside this package that filled the boolean array should call set(x,y,z,c,t) on an SPDA_Occupancy of the same dimensions instead.
+	 */
+	protected SPDA_Occupancy locationMap;
+	protected SPDA_Mask mask;
+	/**
+	 * Names of the colours, in order, if the input gives them (see getChannelNames)
+	 */
+	protected String[] channelNames;
 	protected ImagePlus imp;
 	protected int mode;
+	protected double sigma;
+	protected SPDA_Options options = new SPDA_Options();
+	/**
+	 * Number of sample table rows projected together by applyPCA
+	 */
+	static final int PROJECTION_TILE = 256;
 	
-
+	/**
+	 * Sets the blurring sigma and the optional settings used by analyse
+	 * 
+	 * @param sigma		Value of blurring sigma (the kernel passed to analyse should be made from this)
+	 * @param options	Optional settings of the analysis
+	 */
+	public void setBlurring(double sigma, SPDA_Options options){
+		this.sigma = sigma;
+		this.options = options;
+	}
+	
+	/**
+	 * Gets the name of each colour, which a saved PCA model records so that images are only projected onto a model with the same colours in 
+	 * the same order. Positional files give marker or category names; colours without a name (such as the channels of a thresholded image) 
+	 * are named by their number, C1, C2...
+	 * 
+	 * @return		The names of the colours
+	 */
+	public String[] getChannelNames(){
+		String[] names = new String[channels];
+		for(int c = 0; c<channels; c++){
+			boolean named = channelNames != null && c<channelNames.length && channelNames[c] != null && channelNames[c].length()>0;
+			//Names are saved in a tab separated file
+			names[c] = named ? channelNames[c].replace('\t', ' ') : "C"+(c+1);
+		}
+		return names;
+	}
+	
+	/**
+	 * Creates an int version of a mask channel, arranged slice/frame/X/Y
+	 *
+	 * @deprecated	The mask is now held as an SPDA_Mask, which stores one byte or short per voxel; use SPDA_Mask.fromImage. This copies that mask
+	 * into the old layout for existing callers.
+	 */
+	@Deprecated
+	public static int[][][][] getMask(ImagePlus imp){
+		SPDA_Mask regions = SPDA_Mask.fromImage(imp);
+		int slices = imp.getNSlices();
+		int frames = imp.getNFrames();
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		int[][][][] mask = new int[slices][frames][width][height];
+		for(int z = 0; z<slices; z++){
+			for(int t = 0; t<frames; t++){
+				for(int x = 0; x<width; x++){
+					for(int y = 0; y<height; y++){
+						mask[z][t][x][y] = regions.get(x, y, z, t);
+					}
+				}
+			}
+		}
+		return mask;
+	}
+	
+	/**
+	 * 
+	 * Blurs the entire image, or an individual region, with the engine selected in the options. The recursive engine cannot reproduce
+	 * very small sigmas, so these are always blurred by convolution. Splatting is only available to positional images (see SPDA_PS_Positional), 
+	 * so other images are blurred by convolution.
+	 * 
+	 * @param present	Threshold map of pixels that are above user-defined levels
+	 * @param kernel	The blurring kernel
+	 * @param targetMask	The region that should be blurred, ignoring pixels in other masked regions. If -1 this is ignored and all regions are blurred as one
+	 * @return		An array of images representing the blurred colour occupancy values
+	 */
+	protected FloatProcessor[][][] blur(SPDA_Occupancy present, float[] kernel, int targetMask){
+		if(options.blurMode == SPDA_Pixelspace.BLUR_RECURSIVE && sigma>=SPDA_Recursive_Gaussian.MIN_SIGMA){
+			return recursiveBlurWithMask(present, sigma, targetMask);
+		}
+		return blurWithMask(present, kernel, targetMask);
+	}
+	
+	/**
+	 * Tests whether a voxel takes part in the blurring of a region
+	 * 
+	 * @param targetMask	The region being blurred, or -1 if all regions are blurred as one
+	 * @return		True if the voxel is in the region (or in any region, if targetMask is -1), or no mask is used
+	 */
+	protected boolean inMask(int x, int y, int z, int t, int targetMask){
+		if(!useMask) return true;
+		int thisMask = mask.get(x,y,z,t);
+		return thisMask == targetMask || (targetMask == -1 && thisMask>0);
+	}
 
 	/**
 	 * 
-	 * Blurs the entire image, or an individual region
+	 * Blurs the entire image, or an individual region, within the bounding box of the region. If more than one thread is set in the options, the Y and X passes are split by plane
+	 * (or by band within each plane, if there are fewer planes than threads) and the Z pass by column tile. Each pixel is calculated exactly 
+	 * as it would be on a single thread, so the results do not depend on the number of threads.
+	 * 
+	 * <p>The passes work on flat pixel arrays. The Y pass writes to a scratch buffer that each thread reuses from plane to plane, the X pass 
+	 * writes to one set of planes for the whole image (which also holds the occupancy sum), and the Z pass works on these in place, row by row. 
+	 * The colour planes are only wrapped as FloatProcessors at the end.</p>
 	 * 
 	 * @param present	Threshold map of pixels that are above user-defined levels
 	 * @param mask		Region mask of the image
@@ -53,131 +155,482 @@ public abstract class SPDA_PS_Image{
 	 * @return		An array of images representing the blurred colour occupancy values
 	 * 
 	 */
-	protected FloatProcessor[][][] blurWithMask(boolean[][][][][] present, float[] kernel, int targetMask){
-		int kernelLength = kernel.length;
-		int halfKernel = kernelLength/2;
-		FloatProcessor[][][][] thisSlice = new FloatProcessor[3][slices][frames][channels+1];
-		for(int i = 0; i<3; i++){
-			for(int c= 0; c<=channels; c++){
-				for(int z = 0; z<slices; z++){
-					for(int t = 0; t<frames; t++){
-						thisSlice[i][z][t][c]=new FloatProcessor(width,height);
+	protected FloatProcessor[][][] blurWithMask(SPDA_Occupancy present, float[] kernel, int targetMask){
+		String statusString = "Blurring Region "+targetMask+": ";
+		if(targetMask == -1){
+			statusString = "Blurring: ";
+		}
+		
+		//Nothing outside the region affects it, so only its bounding box (over all frames) is blurred
+		SPDA_Box box = new SPDA_Box(0,0,0,width,height,slices);
+		if(useMask){
+			box = new SPDA_Box();
+			for(int t = 0; t<frames; t++){
+				box.include(targetMask == -1 ? mask.getBounds(t) : mask.getBox(targetMask, t));
+			}
+		}
+		
+		FloatProcessor[][][] output = new FloatProcessor[slices][frames][channels];
+		if(box.isEmpty()){
+			for(int z = 0; z<slices; z++){
+				for(int t = 0; t<frames; t++){
+					for(int c = 0; c<channels; c++){
+						output[z][t][c] = new FloatProcessor(width,height);
 					}
 				}
 			}
-
+			return output;
 		}
+		float[][][][] blurred = blurBox(present, kernel, targetMask, box, 0, frames, statusString);
+		
+		boolean wholeImage = box.getWidth() == width && box.getHeight() == height && box.getDepth() == slices;
+		int boxWidth = box.getWidth();
+		for(int z = 0; z<slices; z++){
+			for(int t = 0; t<frames; t++){
+				for(int c = 0; c<channels; c++){
+					if(wholeImage){
+						output[z][t][c] = new FloatProcessor(width,height,blurred[t][z][c]);
+						continue;
+					}
+					float[] pixels = new float[width*height];
+					if(z>=box.zStart && z<box.zEnd){
+						float[] boxPixels = blurred[t][z-box.zStart][c];
+						for(int y = box.yStart; y<box.yEnd; y++){
+							System.arraycopy(boxPixels, (y-box.yStart)*boxWidth, pixels, y*width+box.xStart, boxWidth);
+						}
+					}
+					output[z][t][c] = new FloatProcessor(width,height,pixels);
+				}
+			}
+		}
+		return output;
+	}
+	
+	/**
+	 * 
+	 * The blurring of blurWithMask, restricted to a box of voxels over a range of frames. Pixels outside the box are treated as empty, 
+	 * and the results are only calculated within the box.
+	 * 
+	 * @param box		The voxels to blur
+	 * @param tStart	First frame to blur
+	 * @param tEnd		End of the frames to blur (exclusive)
+	 * @return		The blurred planes within the box, arranged frame/slice/colour, with the occupancy sum after the colours
+	 */
+	private float[][][][] blurBox(final SPDA_Occupancy present, final float[] kernel, final int targetMask, final SPDA_Box box, final int tStart, int tEnd, final String statusString){
+		final int boxWidth = box.getWidth();
+		final int boxHeight = box.getHeight();
+		final int boxDepth = box.getDepth();
+		final int boxFrames = tEnd-tStart;
+		final float[][][][] blurred = new float[boxFrames][boxDepth][channels+1][boxWidth*boxHeight];
 
-		boolean noDelimit = targetMask == -1;
+		final int threads = SPDA_Parallel.threads(options.threads);
+		final int planes = boxDepth*boxFrames;
 		
-		String statusString = "Blurring Region "+targetMask+": ";
-		if(noDelimit){
-			statusString = "Blurring: ";
+		//Blur Y and X directions, splitting by plane, or by row band if there are fewer planes than threads
+		if(planes>=threads){
+			SPDA_Parallel.forRange(threads, 0, planes, (planes+threads-1)/threads, new SPDA_Parallel.Body(){
+				public void run(int from, int to){
+					byte[][] occupied = new byte[channels][boxWidth*boxHeight];
+					int[] columns = new int[boxWidth];
+					float[][] yPass = new float[channels+1][boxWidth*boxHeight];
+					for(int p = from; p<to; p++){
+						int t = p/boxDepth;
+						int z = p%boxDepth;
+						IJ.showStatus(statusString+SPDA_Pixelspace.NF.format(p/(float)planes*100)+"%");
+						blurY(present, kernel, targetMask, box, z, tStart+t, 0, boxWidth, occupied, columns, yPass);
+						blurX(kernel, targetMask, box, z, tStart+t, 0, boxHeight, yPass, blurred[t][z]);
+					}
+				}
+			});
+		} else {
+			final byte[][] occupied = new byte[channels][boxWidth*boxHeight];
+			final float[][] yPass = new float[channels+1][boxWidth*boxHeight];
+			for(int p = 0; p<planes; p++){
+				final int t = p/boxDepth;
+				final int z = p%boxDepth;
+				IJ.showStatus(statusString+SPDA_Pixelspace.NF.format(p/(float)planes*100)+"%");
+				SPDA_Parallel.forRange(threads, 0, boxWidth, SPDA_Parallel.grain(threads, boxWidth), new SPDA_Parallel.Body(){
+					public void run(int from, int to){
+						blurY(present, kernel, targetMask, box, z, tStart+t, from, to, occupied, new int[to-from], yPass);
+					}
+				});
+				SPDA_Parallel.forRange(threads, 0, boxHeight, SPDA_Parallel.grain(threads, boxHeight), new SPDA_Parallel.Body(){
+					public void run(int from, int to){
+						blurX(kernel, targetMask, box, z, tStart+t, from, to, yPass, blurred[t][z]);
+					}
+				});
+			}
 		}
-		//blur Y direction
-		for(int t = 0; t<frames; t++){
-			for(int z = 0; z<slices; z++){
-				for(int x = 0; x<width; x++){
-					float percent = t/(float)frames+(1/(float)frames*z/(float)slices)+(1/(float)slices*x/(float)width);
-					IJ.showStatus(statusString+SPDA_Pixelspace.NF.format(percent*100)+"%");
-					for(int y = 0; y<height;y++){
-						float [] pixel  = new float[channels];
-						float sum = 0.0f;
-						for(int c = 0; c<channels;c++){
-							pixel[c] = 0.0f;
+		
+		//Blur Z, splitting each frame into column tiles
+		final int tiles = Math.max(1, Math.min(boxWidth, threads*4/boxFrames));
+		SPDA_Parallel.forRange(threads, 0, boxFrames*tiles, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				int tileWidth = (boxWidth+tiles-1)/tiles+1;
+				float[][][] source = new float[boxDepth][channels+1][tileWidth];
+				float[][][] target = new float[boxDepth][channels+1][tileWidth];
+				for(int i = from; i<to; i++){
+					int t = i/tiles;
+					int tile = i%tiles;
+					blurZ(kernel, targetMask, box, blurred[t], tStart+t, tile*boxWidth/tiles, (tile+1)*boxWidth/tiles, source, target);
+				}
+			}
+		});
+		return blurred;
+	}
+	
+	/**
+	 * The Y direction pass of blurWithMask for a band of columns in one plane of the box. Only pixels within the target region are counted.
+	 * 
+	 * @param z		Slice within the box
+	 * @param occupied	Scratch buffer for the occupancy of each colour within the region (1 if occupied)
+	 * @param columns	Scratch buffer for the occupied columns of a row, holding at least xEnd-xStart values
+	 * @param yPass		Buffer for the result of this pass, for each colour followed by the occupancy sum
+	 * @param xStart	First column of the band, within the box
+	 * @param xEnd		End of the band (exclusive)
+	 */
+	private void blurY(SPDA_Occupancy present, float[] kernel, int targetMask, SPDA_Box box, int z, int t, int xStart, int xEnd, byte[][] occupied, int[] columns, float[][] yPass){
+		int kernelLength = kernel.length;
+		int halfKernel = kernelLength/2;
+		int boxWidth = box.getWidth();
+		int boxHeight = box.getHeight();
+		int imageZ = box.zStart+z;
+		for(int y = 0; y<boxHeight; y++){
+			int row = y*boxWidth-box.xStart;
+			for(int c = 0; c<channels; c++){
+				byte[] line = occupied[c];
+				Arrays.fill(line, row+box.xStart+xStart, row+box.xStart+xEnd, (byte)0);
+				int count = present.getRow(box.yStart+y, imageZ, c, t, box.xStart+xStart, box.xStart+xEnd, columns);
+				for(int i = 0; i<count; i++){
+					int x = columns[i];
+					if(inMask(x,box.yStart+y,imageZ,t,targetMask)){
+						line[row+x] = 1;
+					}
+				}
+			}
+		}
+		for(int y = 0; y<boxHeight; y++){
+			int row = y*boxWidth;
+			for(int c = 0; c<=channels; c++){
+				Arrays.fill(yPass[c], row+xStart, row+xEnd, 0.0f);
+			}
+			int kStart = Math.max(0, halfKernel-y);
+			int kEnd = Math.min(kernelLength, boxHeight-y+halfKernel);
+			for(int k = kStart; k<kEnd; k++){
+				int kernelRow = (y-halfKernel+k)*boxWidth;
+				float kernelVal = kernel[k];
+				for(int x = xStart; x<xEnd; x++){
+					for(int c = 0; c<channels; c++){
+						if(occupied[c][kernelRow+x] != 0){
+							yPass[c][row+x] += kernelVal;
+							yPass[channels][row+x] += kernelVal;
 						}
-						for(int k = 0; k<kernelLength;k++){
-							int ky=y-halfKernel+k;
-							if(ky<0){continue;}
-							if(ky>=height){break;}
-							int kernelMask = -1;
-							if(useMask) kernelMask = mask[z][t][x][ky];
-							if(kernelMask == targetMask || (noDelimit && useMask && kernelMask>0) || !useMask){
-								for(int c =0; c<channels;c++){
-									boolean counted = false;
-									if(present[x][ky][z][c][t]){
-										pixel[c] += kernel[k];
-										if(!counted){
-											sum += kernel[k];
-											counted = true;
-										}
-									}
-								}
-							}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The X direction pass of blurWithMask for a band of rows in one plane of the box. Values are only calculated within the target region.
+	 * 
+	 * @param z		Slice within the box
+	 * @param yPass		The result of the Y pass
+	 * @param xPass		The planes (colours followed by the occupancy sum) for the result of this pass. Pixels outside the region are left at zero.
+	 * @param yStart	First row of the band, within the box
+	 * @param yEnd		End of the band (exclusive)
+	 */
+	private void blurX(float[] kernel, int targetMask, SPDA_Box box, int z, int t, int yStart, int yEnd, float[][] yPass, float[][] xPass){
+		int kernelLength = kernel.length;
+		int halfKernel = kernelLength/2;
+		int boxWidth = box.getWidth();
+		for(int y = yStart; y<yEnd; y++){
+			int row = y*boxWidth;
+			for(int x = 0; x<boxWidth; x++){
+				if(!inMask(box.xStart+x,box.yStart+y,box.zStart+z,t,targetMask)) continue;
+				int kStart = Math.max(0, halfKernel-x);
+				int kEnd = Math.min(kernelLength, boxWidth-x+halfKernel);
+				int offset = row+x-halfKernel;
+				for(int c = 0; c<=channels; c++){
+					float[] line = yPass[c];
+					float pixel = 0.0f;
+					for(int k = kStart; k<kEnd; k++){
+						pixel += kernel[k]*line[offset+k];
+					}
+					xPass[c][row+x] = pixel;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The Z direction pass and normalisation of blurWithMask for a tile of columns in one frame of the box, working in place one row of the tile 
+	 * at a time. Slices are zDiff pixels apart, so the kernel index of a pair of slices is scaled by zDiff, and each output slice only reads the 
+	 * slices within the support of the kernel.
+	 * 
+	 * @param frame		The result of the X pass for each slice of the box, which is replaced with the result
+	 * @param source	Scratch buffer holding a row of the tile for each slice and colour
+	 * @param target	Scratch buffer for the blurred row
+	 * @param xStart	First column of the tile, within the box
+	 * @param xEnd		End of the tile (exclusive)
+	 */
+	private void blurZ(float[] kernel, int targetMask, SPDA_Box box, float[][][] frame, int t, int xStart, int xEnd, float[][][] source, float[][][] target){
+		int halfKernel = kernel.length/2;
+		int[] support = zSupport(kernel.length);
+		int tileWidth = xEnd-xStart;
+		int boxWidth = box.getWidth();
+		int boxDepth = box.getDepth();
+		for(int y = 0; y<box.getHeight(); y++){
+			int row = y*boxWidth+xStart;
+			for(int z = 0; z<boxDepth; z++){
+				for(int c = 0; c<=channels; c++){
+					System.arraycopy(frame[z][c], row, source[z][c], 0, tileWidth);
+				}
+			}
+			for(int z=0;z<boxDepth;z++){
+				float[][] out = target[z];
+				for(int c = 0; c<=channels; c++){
+					Arrays.fill(out[c], 0, tileWidth, 0.0f);
+				}
+				int kzStart = Math.max(0, z-support[1]);
+				int kzEnd = Math.min(boxDepth-1, z-support[0]);
+				for(int kz=kzStart; kz<=kzEnd;kz++){
+					int kernelIndex = (int)(halfKernel+Math.round((z-kz)*zDiff));
+					if(kernelIndex<0 || kernelIndex>kernel.length-1) continue;
+					float kernelVal= kernel[kernelIndex];
+					float[][] in = source[kz];
+					for(int c=0; c<=channels; c++){
+						float[] inLine = in[c];
+						float[] outLine = out[c];
+						for(int i = 0; i<tileWidth; i++){
+							outLine[i] += kernelVal*inLine[i];
 						}
-						for(int c =0; c<channels;c++){
-							thisSlice[0][z][t][c].setf(x,y,pixel[c]);
+					}
+				}
+				for(int i = 0; i<tileWidth; i++){
+					boolean inMask = inMask(box.xStart+xStart+i,box.yStart+y,box.zStart+z,t,targetMask);
+					float sum = out[channels][i];
+					boolean sumNonZero = sum > 0.0f;
+					for(int c = 0; c<channels; c++){
+						if(!inMask){
+							out[c][i] = 0.0f;
+						} else if (sumNonZero){
+							out[c][i] = out[c][i]/sum;
 						}
-						thisSlice[0][z][t][channels].setf(x,y,sum);
 					}
 				}
+				for(int c = 0; c<=channels; c++){
+					System.arraycopy(out[c], 0, frame[z][c], row, tileWidth);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Finds the range of slice separations (output slice - input slice) that can fall within the kernel once scaled by zDiff. 
+	 * If the slice spacing is unknown, every separation is allowed.
+	 * 
+	 * @param kernelLength	Length of the blurring kernel
+	 * @return		The smallest and largest separation
+	 */
+	protected int[] zSupport(int kernelLength){
+		int halfKernel = kernelLength/2;
+		if(zDiff == 0.0 || Double.isNaN(zDiff) || Double.isInfinite(zDiff)){
+			return new int[]{1-slices, slices-1};
+		}
+		//Kernel indices from 0 to kernelLength-1 are reached by separations within half a pixel of this range
+		double a = (-halfKernel-0.5)/zDiff;
+		double b = (kernelLength-1-halfKernel+0.5)/zDiff;
+		int dMin = (int) Math.max(1-slices, Math.floor(Math.min(a, b)));
+		int dMax = (int) Math.min(slices-1, Math.ceil(Math.max(a, b)));
+		return new int[]{dMin, dMax};
+	}
 
-
-
-				//blur X direction
+	/**
+	 * 
+	 * Blurs the entire image, or an individual region, using a recursive approximation of the gaussian (see SPDA_Recursive_Gaussian), so that 
+	 * the time taken does not grow with sigma. The masking follows blurWithMask: only pixels within the region are blurred, values are discarded 
+	 * outside the region after the XY blur and again at the end, and each colour is divided by the total occupancy of all colours.
+	 * 
+	 * @param present	Threshold map of pixels that are above user-defined levels
+	 * @param sigma		The blurring sigma, in pixels
+	 * @param targetMask	The region that should be blurred, ignoring pixels in other masked regions. If -1 this is ignored and all regions are blurred as one
+	 * @return		An array of images representing the blurred colour occupancy values
+	 * 
+	 */
+	protected FloatProcessor[][][] recursiveBlurWithMask(final SPDA_Occupancy present, final double sigma, final int targetMask){
+		final SPDA_Recursive_Gaussian gauss = new SPDA_Recursive_Gaussian(sigma);
+		FloatProcessor[][][] output = new FloatProcessor[slices][frames][channels];
+		final float[][][][] planes = new float[frames][slices][channels][];
+		for(int z = 0; z<slices; z++){
+			for(int t = 0; t<frames; t++){
+				for(int c = 0; c<channels; c++){
+					output[z][t][c] = new FloatProcessor(width,height);
+					planes[t][z][c] = (float[]) output[z][t][c].getPixels();
+				}
+			}
+		}
+		
+		String status = "Blurring Region "+targetMask+": ";
+		if(targetMask == -1){
+			status = "Blurring: ";
+		}
+		final String statusString = status;
+		
+		final int threads = SPDA_Parallel.threads(options.threads);
+		final int planeCount = slices*frames;
+		
+		//Blur Y and X directions, splitting by plane
+		SPDA_Parallel.forRange(threads, 0, planeCount, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				//Every row of the Y sweep lies in the same plane
+				float[][] rowArrays = new float[height][];
+				int[] rowOffsets = new int[height];
+				int[] columns = new int[width];
 				for(int y = 0; y<height; y++){
-					for(int x = 0; x<width; x++){
-						int thisMask = -1;
-						if(useMask) thisMask = mask[z][t][x][y];
-						if(thisMask == targetMask || (thisMask>0 && noDelimit) || !useMask){
-							float [] pixel = new float[channels];
-							float sum = 0.0f;
-							for(int c = 0; c<channels;c++){
-								pixel[c] = 0.0f;
-							}
-							for(int k = 0; k<kernelLength;k++){
-								int kx=x-halfKernel+k;
-								if(kx<0){continue;}
-								if(kx>=width){break;}
-								for(int c =0; c<channels;c++){
-									pixel[c] += (kernel[k]*thisSlice[0][z][t][c].getf(kx,y));
+					rowOffsets[y] = y*width;
+				}
+				for(int p = from; p<to; p++){
+					int t = p/slices;
+					int z = p%slices;
+					IJ.showStatus(statusString+SPDA_Pixelspace.NF.format(p/(double)planeCount*100)+"%");
+					for(int c = 0; c<channels; c++){
+						float[] pixels = planes[t][z][c];
+						for(int y = 0; y<height; y++){
+							int count = present.getRow(y, z, c, t, 0, width, columns);
+							for(int i = 0; i<count; i++){
+								int x = columns[i];
+								if(inMask(x,y,z,t,targetMask)){
+									pixels[y*width+x] = 1.0f;
 								}
-								sum += (kernel[k]*thisSlice[0][z][t][channels].getf(kx,y));
-							}
-							for(int c =0; c<channels;c++){	
-								thisSlice[1][z][t][c].setf(x,y,pixel[c]);
 							}
-							thisSlice[1][z][t][channels].setf(x,y,sum);
 						}
 					}
-				}
-
-			}
-			//Blur Z
-			for(int z=0;z<slices;z++){
-				for(int kz=0; kz<slices;kz++){
-					int kernelIndex = (int)(halfKernel+Math.round((z-kz)*zDiff));
-					if(kernelIndex<0 || kernelIndex>kernel.length-1) continue;
-					float kernelVal= kernel[kernelIndex];
-					for(int x = 0; x<width; x++){
+					for(int c = 0; c<channels; c++){
+						float[] pixels = planes[t][z][c];
+						//blur Y direction
+						Arrays.fill(rowArrays, pixels);
+						gauss.filterSweep(rowArrays, rowOffsets, height, 0, width);
+						//blur X direction
 						for(int y = 0; y<height; y++){
-							for(int c=0; c<channels; c++){
-								thisSlice[2][z][t][c].setf(x, y,thisSlice[2][z][t][c].getf(x,y)+(kernelVal*thisSlice[1][kz][t][c].getf(x,y)));
-								thisSlice[2][z][t][channels].setf(x, y,thisSlice[2][z][t][channels].getf(x,y)+(kernelVal*thisSlice[1][kz][t][channels].getf(x,y)));
-							}
+							gauss.filterLine(pixels, y*width, 1, width);
 						}
 					}
-
+					clearOutsideMask(planes[t][z], z, t, targetMask);
 				}
-				for(int x = 0; x<width; x++){
-					for(int y = 0; y<height; y++){
-						int thisMask = -1;
-						if(useMask) thisMask = mask[z][t][x][y];
-						boolean inMask = thisMask == targetMask || (thisMask>0 && noDelimit) || !useMask;
-						float sum = thisSlice[2][z][t][channels].getf(x,y);
-						boolean sumNonZero = sum > 0.0f;
+			}
+		});
+		
+		//Blur Z, splitting each frame into tiles of pixels
+		final int planeSize = width*height;
+		final int tiles = Math.max(1, Math.min(planeSize, threads*4/frames));
+		SPDA_Parallel.forRange(threads, 0, frames*tiles, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int i = from; i<to; i++){
+					int t = i/tiles;
+					int tile = i%tiles;
+					int start = (int)((long)tile*planeSize/tiles);
+					int end = (int)((long)(tile+1)*planeSize/tiles);
+					recursiveBlurZ(planes[t], gauss, sigma, start, end);
+				}
+			}
+		});
+		
+		//Normalise by the total occupancy
+		SPDA_Parallel.forRange(threads, 0, planeCount, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int p = from; p<to; p++){
+					int t = p/slices;
+					int z = p%slices;
+					clearOutsideMask(planes[t][z], z, t, targetMask);
+					float[][] slice = planes[t][z];
+					for(int i = 0; i<planeSize; i++){
+						float sum = 0.0f;
 						for(int c = 0; c<channels; c++){
-							if(!inMask){
-								thisSlice[2][z][t][c].setf(x, y,0.0f);
-							} else if (sumNonZero){
-								thisSlice[2][z][t][c].setf(x, y,thisSlice[2][z][t][c].getf(x,y)/sum);
+							sum += slice[c][i];
+						}
+						if(sum > 0.0f){
+							for(int c = 0; c<channels; c++){
+								slice[c][i] = slice[c][i]/sum;
 							}
 						}
 					}
 				}
 			}
+		});
+		return output;
+	}
+	
+	/**
+	 * Sets the colour values of pixels outside the blurred region to zero
+	 * 
+	 * @param slice		The pixel arrays of each colour of the slice
+	 */
+	private void clearOutsideMask(float[][] slice, int z, int t, int targetMask){
+		if(!useMask) return;
+		for(int x = 0; x<width; x++){
+			for(int y = 0; y<height; y++){
+				if(inMask(x,y,z,t,targetMask)) continue;
+				for(int c = 0; c<channels; c++){
+					slice[c][y*width+x] = 0.0f;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * Blurs a single frame in Z for recursiveBlurWithMask. Slices are zDiff pixels apart, so sigma is scaled accordingly. Where this is too 
+	 * small for the recursive filter (very thick slices), or the slice spacing is unknown, the slices are combined directly.
+	 * 
+	 * @param frame		The pixel arrays of the frame, arranged slice/colour
+	 * @param gauss		The XY recursive filter
+	 * @param sigma		The blurring sigma, in pixels
+	 * @param start		First pixel (index within the plane arrays) to blur
+	 * @param end		End of the pixels to blur (exclusive)
+	 */
+	private void recursiveBlurZ(float[][][] frame, SPDA_Recursive_Gaussian gauss, double sigma, int start, int end){
+		if(slices == 1) return;
+		double sigmaZ = sigma/zDiff;
+		if(zDiff>0 && sigmaZ>=SPDA_Recursive_Gaussian.MIN_SIGMA){
+			SPDA_Recursive_Gaussian gaussZ = zDiff == 1.0 ? gauss : new SPDA_Recursive_Gaussian(sigmaZ);
+			float[][] sliceArrays = new float[slices][];
+			int[] sliceOffsets = new int[slices];
+			for(int c = 0; c<channels; c++){
+				for(int z = 0; z<slices; z++){
+					sliceArrays[z] = frame[z][c];
+				}
+				gaussZ.filterSweep(sliceArrays, sliceOffsets, slices, start, end-start);
+			}
+			return;
+		}
+		
+		//Weights of each slice separation. If the spacing is unknown, blurWithMask weights all slices equally.
+		float[] weights = new float[2*slices-1];
+		for(int d = 1-slices; d<slices; d++){
+			if(zDiff>0){
+				double distance = d*zDiff;
+				double weight = d == 0 ? 1.0 : Math.exp(-distance*distance/(2*sigma*sigma));
+				weights[d+slices-1] = weight<0.01 ? 0.0f : (float) weight;
+			} else {
+				weights[d+slices-1] = 1.0f;
+			}
+		}
+		float[] line = new float[slices];
+		for(int c = 0; c<channels; c++){
+			for(int i = start; i<end; i++){
+				for(int z = 0; z<slices; z++){
+					line[z] = frame[z][c][i];
+				}
+				for(int z = 0; z<slices; z++){
+					float value = 0.0f;
+					for(int kz = 0; kz<slices; kz++){
+						value += weights[z-kz+slices-1]*line[kz];
+					}
+					frame[z][c][i] = value;
+				}
+			}
 		}
-		return thisSlice[2];
 	}
 
 	/**
@@ -185,70 +638,86 @@ public abstract class SPDA_PS_Image{
 	 * Allows for blurring that does not cross differently indexed regions of the sample, blurring each separately and then combining the results
 	 * I.e. implements the 'segregating mask' functionality.
 	 * 
+	 * <p>Only the voxels of a region are counted when it is blurred, and its results are only kept within the region, so nothing outside
+	 * the bounding box of the region (in each frame) affects it. Each region is therefore only blurred within its bounding box, and its 
+	 * results are written straight into the combined output.</p>
+	 * 
 	 * @param present	Threshold map
 	 * @param mask		An image holding the regional indices of each pixel
 	 * @param kernel	The blurring kernel
 	 * @return		An array of images representing the blurred colour occupancy values
 	 */
 
-	protected FloatProcessor[][][] splitBlurWithMask(boolean[][][][][] present, float[] kernel){
-		
-		//Find maximum mask index
-		int masks = 1;
-		for(int t = 0; t<frames; t++){
-			for(int z = 0; z<slices; z++){
-				for(int x = 0; x<width; x++){
-					for(int y = 0; y<height; y++){
-						masks = Math.max(masks,mask[z][t][x][y]);
+	protected FloatProcessor[][][] splitBlurWithMask(SPDA_Occupancy present, float[] kernel){
+		int masks = mask.getRegions();
+		boolean recursive = options.blurMode == SPDA_Pixelspace.BLUR_RECURSIVE && sigma>=SPDA_Recursive_Gaussian.MIN_SIGMA;
+
+		float[][][][] merged = new float[frames][slices][channels][width*height];
+		for(int i = 0; i<masks;i++){
+			int region = i+1;
+			if(mask.getCount(region) == 0) continue;
+			if(recursive){
+				FloatProcessor[][][] compartment = recursiveBlurWithMask(present, sigma, region);
+				for(int t = 0; t<frames; t++){
+					for(int z = 0; z<slices; z++){
+						float[][] blurred = new float[channels][];
+						for(int c = 0; c<channels; c++){
+							blurred[c] = (float[]) compartment[z][t][c].getPixels();
+						}
+						mergeRegion(merged[t][z], blurred, new SPDA_Box(0,0,z,width,height,z+1), z, t, region);
 					}
 				}
+				continue;
+			}
+			for(int t = 0; t<frames; t++){
+				SPDA_Box box = mask.getBox(region, t);
+				if(box.isEmpty()) continue;
+				float[][][][] blurred = blurBox(present, kernel, region, box, t, t+1, "Blurring Region "+region+": ");
+				for(int z = box.zStart; z<box.zEnd; z++){
+					mergeRegion(merged[t][z], blurred[0][z-box.zStart], box, z, t, region);
+				}
 			}
 		}
-
-		//Get blurred compartments
-		FloatProcessor[][][][] compartments = new FloatProcessor[masks][slices][frames][channels+1];
-		for(int i = 0; i<masks;i++){
-			compartments[i] = blurWithMask(present, kernel,i+1);
-		}
-		//merge blurred compartments
+		
 		FloatProcessor[][][] output = new FloatProcessor[slices][frames][channels];
 		for(int z = 0; z<slices; z++){
 			for(int t = 0; t<frames;t++){
 				for(int c = 0; c<channels; c++){
-					output[z][t][c] = new FloatProcessor(width,height);
+					output[z][t][c] = new FloatProcessor(width,height,merged[t][z][c]);
 				}
 			}
 		}
-		for(int t = 0; t<frames; t++){
-			for(int z = 0; z<slices; z++){
-				for(int x=0; x<width;x++){
-					IJ.showStatus("Reconstituting blurred image "+SPDA_Pixelspace.NF.format((double)x/(double)width)+"%");
-					for(int y=0; y<height; y++){
-						int thisMask = mask[z][t][x][y]-1;
-						if(thisMask == -1){continue;}
-						for(int c=0;c<channels;c++){
-							output[z][t][c].setf(x,y,compartments[thisMask][z][t][c].getf(x,y));
-						}
-					}
+		return output;
+	}
+	
+	/**
+	 * Copies the blurred values of the pixels of one region in a slice into the combined output of splitBlurWithMask
+	 * 
+	 * @param merged	The colour planes of the combined output for this slice
+	 * @param blurred	The blurred colour planes of the region, covering the XY extent of the box
+	 * @param box		The box that was blurred
+	 * @param region	The region being copied
+	 */
+	private void mergeRegion(float[][] merged, float[][] blurred, SPDA_Box box, int z, int t, int region){
+		int boxWidth = box.getWidth();
+		for(int y = box.yStart; y<box.yEnd; y++){
+			for(int x = box.xStart; x<box.xEnd; x++){
+				if(mask.get(x,y,z,t) != region) continue;
+				int i = (y-box.yStart)*boxWidth+x-box.xStart;
+				for(int c = 0; c<channels; c++){
+					merged[c][y*width+x] = blurred[c][i];
 				}
 			}
 		}
-		return output;
 	}
-
+	
 	/**
 	 * 
 	 * @param blurred	An array of floatprocessers holding the blurred occupancy values for each point
-	 * @param blurred	If true, respect mask. If not, ignore.
-
-	 * @return		An array holding pixel values 
+	 * @return		A table holding the colour values and coordinates of each voxel within the mask
 	 */
 
-	protected double[][] sample(FloatProcessor[][][] blurred){
-
-		ArrayList<double[]> cellProps = new ArrayList<double[]>();
-		coordinates = new ArrayList<int[]>();
-
+	protected SPDA_Sample_Table sample(FloatProcessor[][][] blurred){
 		double[] maxColours = new double[channels];
 		for(int z = 0; z<slices; z++){
 			for(int t = 0; t<frames; t++){
@@ -258,129 +727,129 @@ public abstract class SPDA_PS_Image{
 			}
 		}
 		
+		long voxels = 0;
+		for(int region = 1; region<=mask.getRegions(); region++){
+			voxels += mask.getCount(region);
+		}
+		SPDA_Sample_Table table = new SPDA_Sample_Table(channels, width, slices, (int) Math.min(voxels, Integer.MAX_VALUE-8));
+		
+		//Only the bounding box of the mask regions in each frame can hold sampled pixels
+		float[][] pixels = new float[channels][];
 		for(int z = 0; z<slices ; z++){
 			for(int t = 0; t<frames; t++){
-				for(int x = 0; x<width; x++){
+				SPDA_Box bounds = mask.getBounds(t);
+				if(z<bounds.zStart || z>=bounds.zEnd) continue;
+				for(int c = 0; c<channels; c++){
+					pixels[c] = (float[]) blurred[z][t][c].getPixels();
+				}
+				for(int x = bounds.xStart; x<bounds.xEnd; x++){
 					IJ.showStatus("Sampling "+SPDA_Pixelspace.NF.format((double)x/(double)width*100)+"%");
-					for(int y=0; y<height;y++){
-						int thisMask = mask[z][t][x][y];
+					for(int y=bounds.yStart; y<bounds.yEnd;y++){
+						int thisMask = mask.get(x,y,z,t);
 						if(thisMask == 0){continue;}
-						double[] proportions = new double[channels];
-							coordinates.add(new int[]{x,y,thisMask,z,t});
-							for(int c = 0; c<channels;c++){
-								if(maxColours[c] == 0.0){continue;}
-								proportions[c]=(double) blurred[z][t][c].getf(x,y);
-								proportions[c] = proportions[c]/maxColours[c]; //Normalise within colours
-							}
-						
-						cellProps.add(proportions);
-						
+						int row = table.add(x, y, z, t, thisMask);
+						for(int c = 0; c<channels;c++){
+							if(maxColours[c] == 0.0){continue;}
+							table.set(row, c, (double) pixels[c][y*width+x]/maxColours[c]); //Normalise within colours
+						}
 					}
 				}
 			}
 		}
 		
-		//Normalise across colours 
-			for(int i = 0; i<cellProps.size(); i++){
-				IJ.showStatus("Normalising across Colours "+SPDA_Pixelspace.NF.format((double)i/(double)cellProps.size()*100)+"%");
-				double[] thisPixel = cellProps.get(i);
-				double sum = 0.0;
-				for(int c = 0; c<channels;c++){
-					sum += thisPixel[c];
-				}
-				for(int c = 0; c<channels;c++){
-					if(sum != 0.0){
-						thisPixel[c]=thisPixel[c]/sum;
-				}
-			}
-		}
-		
-
-		//Create double array of proportions for the PCA
-		double [][] proportionsArray = new double[cellProps.size()][channels];
-    	for(int i = 0; i<proportionsArray.length; i++){
-    		proportionsArray[i] = cellProps.get(i);
-    	}
-		
-		return proportionsArray;
-	}
-	
-
-	/**
-	 * Generates a blank (all-inclusive) mask
-	 */
-	
-	protected int[][][][] blankMask() {
-		int[][][][] newmask = new int[slices][frames][width][height];
-		for(int z = 0; z<slices; z++) {
-			for(int t = 0; t<frames; t++) {
-				for(int x = 0; x<width; x++) {
-					for(int y = 0; y<height; y++) {
-						newmask[z][t][x][y] = 1;
+		//Normalise across colours, a block of rows at a time
+		final SPDA_Sample_Table finished = table;
+		final int rows = table.getRows();
+		final int blocks = (rows+SPDA_Covariance.BLOCK-1)/SPDA_Covariance.BLOCK;
+		SPDA_Parallel.forRange(options.threads, 0, blocks, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int b = from; b<to; b++){
+					IJ.showStatus("Normalising across Colours "+SPDA_Pixelspace.NF.format((double)b/(double)blocks*100)+"%");
+					int start = b*SPDA_Covariance.BLOCK;
+					int end = Math.min(rows, start+SPDA_Covariance.BLOCK);
+					for(int i = start; i<end; i++){
+						double sum = 0.0;
+						for(int c = 0; c<channels;c++){
+							sum += finished.get(i, c);
+						}
+						if(sum != 0.0){
+							for(int c = 0; c<channels;c++){
+								finished.set(i, c, finished.get(i, c)/sum);
+							}
+						}
 					}
 				}
 			}
-		}
-		return newmask;
+		});
+		statistics = null;
+		return table;
 	}
+	
 
 	/**
 	 * 
-	 * Outputs both the results table and images following the PCA analysis
+	 * Outputs both the results table and images following the PCA analysis. The scores are written straight into the planes of the output 
+	 * image and the columns of the results table.
 	 * 
-	 * @param eigenvec	The PCA eigenvectors
+	 * @param template	Results holding the PCA eigenvectors
 	 */
 
 	public SPDA_Results getPCAResults(SPDA_Results template){
-		double[][] table = applyPCA(template.eigenVec);
-		ResultsTable pcaResults = new ResultsTable();
-	    	
-	    	for(int i = 0; i<table.length;i++){
-	    		pcaResults.incrementCounter();
-	    		pcaResults.addValue("X",coordinates.get(i)[0]);
-	    		pcaResults.addValue("Y",coordinates.get(i)[1]);
-	    		if(useMask){
-	    			pcaResults.addValue("Region",coordinates.get(i)[2]);
-	    		}
-	    		if(slices>1){
-	    			pcaResults.addValue("Slice",coordinates.get(i)[3]+1);
-	    		}
-	    		if(frames>1){
-	    			pcaResults.addValue("Frame",coordinates.get(i)[4]+1);
-	    		}
-	    		for(int j=0; j<table[0].length;j++){
-	    			pcaResults.addValue("PC"+(j+1),table[i][j]);
-	    		}
-	    		
-	    	}
-	    	pcaResults.setPrecision(8);
-		ImageStack stack = new ImageStack(width,height);
-		int maxC = Math.min(3,channels);
+		int rows = samples.getRows();
+		int pcs = template.eigenVec[0].length;
+		if(options.components>0) pcs = Math.min(pcs, options.components);
+		int maxC = options.imageComponents>0 ? Math.min(options.imageComponents, pcs) : pcs;
 
+		ImageStack stack = new ImageStack(width,height);
 		int totalSlices = maxC*slices*frames;
 		for(int i = 0; i<totalSlices; i++){
 			stack.addSlice(new FloatProcessor(width,height));
-			
 		}
 		CompositeImage output = new CompositeImage(new ImagePlus("Image PCA of "+title,stack),CompositeImage.COMPOSITE);
 		output.setDimensions(maxC, slices, frames);
-		
-		FloatProcessor canvas = (FloatProcessor) stack.getProcessor(1);
+		float[][][] planes = new float[maxC][slices*frames][];
 		for(int c = 0; c<maxC; c++){
-			int lastZ = -1; 
-			int lastT = -1;
-			for(int i = 0; i<table.length; i++){
-				int[] coord = coordinates.get(i);
-				if(coord[3]!=lastZ || coord[4]!=lastT){
-					lastZ=coord[3];
-					lastT=coord[4];
-					canvas= (FloatProcessor) stack.getProcessor(output.getStackIndex(c+1, coord[3]+1, coord[4]+1));
-				}
-				 canvas.setf(coord[0],coord[1],(float)table[i][c]);
-			 }
+			for(int t = 0; t<frames; t++){
+				for(int z = 0; z<slices; z++){
+					planes[c][t*slices+z] = (float[]) stack.getPixels(output.getStackIndex(c+1, z+1, t+1));
+				}
+			}
 		}
 		
+		double[][] table = applyPCA(template.eigenVec, pcs, planes);
 		
+		ResultsTable pcaResults = new ResultsTable();
+		double[] column = new double[rows];
+		for(int i = 0; i<rows; i++){
+			column[i] = samples.getX(i);
+		}
+		pcaResults.setValues("X", column);
+		for(int i = 0; i<rows; i++){
+			column[i] = samples.getY(i);
+		}
+		pcaResults.setValues("Y", column);
+		if(useMask){
+			for(int i = 0; i<rows; i++){
+				column[i] = samples.getRegion(i);
+			}
+			pcaResults.setValues("Region", column);
+		}
+		if(slices>1){
+			for(int i = 0; i<rows; i++){
+				column[i] = samples.getZ(i)+1;
+			}
+			pcaResults.setValues("Slice", column);
+		}
+		if(frames>1){
+			for(int i = 0; i<rows; i++){
+				column[i] = samples.getT(i)+1;
+			}
+			pcaResults.setValues("Frame", column);
+		}
+		for(int j=0; j<table.length;j++){
+			pcaResults.setValues("PC"+(j+1), table[j]);
+		}
+		pcaResults.setPrecision(8);
 		
 		SPDA_Results results = template.duplicate();
 		results.pdaImp = output;
@@ -388,37 +857,9 @@ public abstract class SPDA_PS_Image{
 		return results;
 		
 	}
-	
 	 	
 
 
-	/**
-	 * Creates a byte version of a mask channel
-	 */
-	
-	public static int[][][][] getMask(ImagePlus imp){
-		ImageStack stack = imp.getStack();
-		int slices = imp.getNSlices();
-		int frames = imp.getNFrames();
-		int maskChannel = imp.getNChannels();
-		int width = imp.getWidth();
-		int height = imp.getHeight();
-		int[][][][] mask = new int[slices][frames][width][height];
-		for(int z = 1; z<=slices; z++){
-			for(int t=1; t<=frames; t++){
-				ImageProcessor ip = stack.getProcessor(imp.getStackIndex(maskChannel,z,t));
-				int nt = t-1;
-				int nz = z-1;
-				for(int x = 0; x<width; x++){
-					for(int y=0; y<height; y++){
-						mask[nz][nt][x][y]=(int) ip.getPixel(x, y);
-					}
-				}
-			}
-		}
-		return mask;
-	}
-	
 	/**
 	 * Returns the mask of a particular slice and timepoint
 	 * 
@@ -430,7 +871,7 @@ public abstract class SPDA_PS_Image{
 		ByteProcessor maskbp = new ByteProcessor(width,height);
 		for(int x = 0; x<width; x++) {
 			for(int y = 0; y<height; y++) {
-				maskbp.set(x, y,mask[z][t][x][y]);
+				maskbp.set(x, y,mask.get(x,y,z,t));
 			}
 		}
 		
@@ -457,26 +898,62 @@ public abstract class SPDA_PS_Image{
 
 	/**
 	 * 
-	 * Applies PCA to array of pixel values, converting the table's colour values to their positions within PCA Space
+	 * Applies PCA to the sample table, converting the table's colour values to their positions within PCA Space. The table is worked 
+	 * through a tile of rows at a time: each tile is copied row by row into a small buffer, and every component of a row is found from it, 
+	 * so the colour columns are only read once. Tiles are split between threads; each row is independent, so the result does not depend on 
+	 * the number of threads.
 	 * 
 	 * @param eigenVec	The output of the PCA Analysis
-	 * @param table		The table of colour values to be converted
-	 * @return		The original table with values plotted in pca space
+	 * @param pcs		Number of components to project onto
+	 * @param planes	Pixels of the output planes of the first components, arranged component/plane - the score of each row is also written here
+	 * @return		The values of each row in pca space, arranged component/row
 	 * 
 	 */
-	 private double[][] applyPCA(double[][] eigenVec){
-	 	int rows = proportions.length;
-	 	int pcs = eigenVec[0].length;
-	 	double[][] pCsArray = new double[rows][pcs];
+	 private double[][] applyPCA(double[][] eigenVec, final int pcs, final float[][][] planes){
+	 	final int rows = samples.getRows();
+	 	final int colours = samples.getChannels();
+	 	//Weights arranged component/colour, so each component reads them in order
+	 	final double[][] weights = new double[pcs][colours];
 	 	for(int pc = 0; pc<pcs; pc++){
-	 		for(int i = 0; i<rows; i++){
-	 			double sum = 0.0;
-	 			for(int j = 0; j<proportions[0].length; j++){
-	 				sum-= proportions[i][j]*eigenVec[j][pc];
-	 			}
-	 			pCsArray[i][pc]=sum;
+	 		for(int j = 0; j<colours; j++){
+	 			weights[pc][j] = eigenVec[j][pc];
 	 		}
 	 	}
+	 	final double[][] values = new double[colours][];
+	 	for(int j = 0; j<colours; j++){
+	 		values[j] = samples.getColumn(j);
+	 	}
+	 	final double[][] pCsArray = new double[pcs][rows];
+	 	int grain = Math.max(PROJECTION_TILE, SPDA_Parallel.grain(options.threads, rows));
+	 	SPDA_Parallel.forRange(options.threads, 0, rows, grain, new SPDA_Parallel.Body(){
+	 		public void run(int from, int to){
+	 			double[] tile = new double[PROJECTION_TILE*colours];
+	 			for(int start = from; start<to; start += PROJECTION_TILE){
+	 				int end = Math.min(to, start+PROJECTION_TILE);
+	 				for(int j = 0; j<colours; j++){
+	 					double[] column = values[j];
+	 					for(int i = start, k = j; i<end; i++, k += colours){
+	 						tile[k] = column[i];
+	 					}
+	 				}
+	 				for(int i = start, k = 0; i<end; i++, k += colours){
+	 					int pixel = samples.getPixel(i);
+	 					int plane = samples.getPlane(i);
+	 					for(int pc = 0; pc<pcs; pc++){
+	 						double[] weight = weights[pc];
+	 						double score = 0.0;
+	 						for(int j = 0; j<colours; j++){
+	 							score -= tile[k+j]*weight[j];
+	 						}
+	 						pCsArray[pc][i] = score;
+	 						if(pc<planes.length){
+	 							planes[pc][plane][pixel] = (float) score;
+	 						}
+	 					}
+	 				}
+	 			}
+	 		}
+	 	});
 	 	return pCsArray;
 	 }
 	 
@@ -489,105 +966,100 @@ public abstract class SPDA_PS_Image{
 
 		 */
 
-		public double[][] analyse(float[] kernel){
+		public SPDA_Sample_Table analyse(float[] kernel){
 			
 			FloatProcessor[][][] blurred = new FloatProcessor[0][][];
 			if(splitMask){
 				blurred = splitBlurWithMask(locationMap, kernel);
 			} else {
-				blurred =blurWithMask(locationMap, kernel,-1);
+				blurred =blur(locationMap, kernel,-1);
 			}
-			proportions =  sample(blurred);
+			samples =  sample(blurred);
 			
-			return proportions;
+			return samples;
 		}
 		
 
-		ImagePlus drawKMeansImage(int[][][][] mask, int[] groups) {
+		/**
+		 * Chooses the rows of the sample table used to fit the PCA, following the sampling options. All rows are projected onto the result.
+		 * 
+		 * @return		The rows of the last sample table produced by analyse that are used for fitting
+		 */
+		public SPDA_Sample_Table fittingSample(){
+			return SPDA_Sampling.subsample(samples, options);
+		}
+		
+		/**
+		 * The statistics of the rows used to fit the PCA. They are only gathered when a PCA is fitted, so k-means and projection onto a 
+		 * stored model do not pay for them. When all rows are used the statistics are kept until the samples are released.
+		 * 
+		 * @return		The means and co-moments of the fitting rows of the last sample table produced by analyse
+		 */
+		public SPDA_Covariance fittingStatistics(){
+			SPDA_Sample_Table fitting = fittingSample();
+			if(fitting != samples) return SPDA_Covariance.of(fitting, options.threads);
+			if(statistics == null) statistics = SPDA_Covariance.of(samples, options.threads);
+			return statistics;
+		}
+
+		/**
+		 * Frees the sample table and statistics of the last analysis. analyse must be run again before the image can be projected.
+		 */
+		public void releaseSamples(){
+			samples = null;
+			statistics = null;
+		}
+
+		/**
+		 * Draws the k-means groups as a 16-bit label image with every slice and frame of the image. Each row of the sample table is 
+		 * drawn at its own coordinates, with its group+1 (0 is background), so up to 65535 groups can be drawn. Rows are drawn in parallel.
+		 * The LUT has 256 colours: with more than 255 groups the display range is widened to the largest label, so neighbouring groups 
+		 * share a colour, but the pixel values still hold every group.
+		 * 
+		 * @param samples	The sample table that was clustered
+		 * @param groups	The group of each row of the table
+		 * @return		The label image
+		 */
+		ImagePlus drawKMeansImage(final SPDA_Sample_Table samples, final int[] groups) {
 			String title = "Test K-means Image";
 			if(imp !=null) title = "K Means in "+imp.getTitle();
-			ImagePlus kImp = IJ.createHyperStack(title, width, height, 1, 1, 1, 8);
-			ByteProcessor kbp = (ByteProcessor) kImp.getChannelProcessor();
-			int i = 0;
-			for(int x = 0; x<width; x++) {
-				for(int y=0; y<height; y++) {
-					if(mask[0][0][x][y]>0) {
-						kbp.set(x,y,groups[i]+1);
-						i++;
+			ImageStack stack = new ImageStack(width, height);
+			final short[][] planes = new short[slices*frames][];
+			for(int i = 0; i<planes.length; i++) {
+				planes[i] = new short[width*height];
+				stack.addSlice(new ShortProcessor(width, height, planes[i], null));
+			}
+			int rows = samples.getRows();
+			SPDA_Parallel.forRange(options.threads, 0, rows, Math.max(PROJECTION_TILE, SPDA_Parallel.grain(options.threads, rows)), new SPDA_Parallel.Body(){
+				public void run(int from, int to){
+					for(int i = from; i<to; i++) {
+						planes[samples.getPlane(i)][samples.getPixel(i)] = (short) (groups[i]+1);
 					}
 				}
+			});
+			ImagePlus kImp = new ImagePlus(title, stack);
+			kImp.setDimensions(1, slices, frames);
+			if(slices>1 || frames>1) kImp.setOpenAsHyperStack(true);
+			int labels = 0;
+			for(int i = 0; i<rows; i++) {
+				labels = Math.max(labels, groups[i]+1);
 			}
 			kImp.setLut(kMeansLUT());
+			kImp.setDisplayRange(0, Math.max(255, labels));
 			return kImp;
 		}
 		
 		/**
-		 * Perform a K-Means analysis of the sample table
+		 * Perform a K-Means analysis of the sample table. The centroids are fitted on the rows chosen by the sampling options, and every row 
+		 * is then assigned to its nearest centroid (see SPDA_KMeans).
 		 */
 		
-		int[] doKMeans(double[][] sampletable, int kmeans, int maxIterations){
-			int rows = sampletable.length;
-			int colours = sampletable[0].length;
-			double[][] centroids = new double[kmeans][colours];
-			Random rand = new Random();
-			
-			//Pick random rows from the sampletable as starting centroids
-			for(int i = 0; i<kmeans; i++) {
-				centroids[i] = sampletable[rand.nextInt(rows)];
-			}
-			
-			int[] groupAssignments = new int[rows];
-			boolean updated = true;
-			
-			
-			//Repeat until the points are no longer reassigned
-			for(int iter = 0; iter<maxIterations; iter++) {
-				IJ.log("ITERATION "+iter);
-				int[] newGroupAssignments = new int[rows];
-				float[][] colourSums = new float[kmeans][colours];
-				int[] groupCounts = new int[kmeans];
-				updated = false;
-				
-				//For each row, find the nearest centroid in colour space and assign
-				for(int i = 0; i<rows; i++) {
-					float bestDistance = Float.MAX_VALUE;
-					newGroupAssignments[i]= -1;
-					for(int j = 0; j<kmeans; j++) {
-						float distance = Colour_Distance_Analysis.getColourDistance(sampletable[i],centroids[j],true,false,false);
-						distance = distance*distance;
-						if(distance<bestDistance) {
-							bestDistance = distance;
-							newGroupAssignments[i]=j;
-						}
-					}
-					
-					groupCounts[newGroupAssignments[i]]++;
-					
-					for(int j = 0; j<colours;j++) {
-						colourSums[newGroupAssignments[i]][j] += sampletable[i][j];
-					}
-					//If it has been reassigned since the last iteration we will need to repeat
-					if(newGroupAssignments[i] != groupAssignments[i]) updated = true;
-				}
-				groupAssignments = newGroupAssignments;
-				
-				//recalculate centroids
-				for(int i = 0; i<kmeans;i++) {
-					IJ.log("Group "+i+": "+groupCounts[i]);
-					if(groupCounts[i]>0) {
-
-						for(int j = 0; j<colours; j++) {
-							centroids[i][j] = colourSums[i][j]/groupCounts[i];
-							IJ.log("C"+(j+1)+": "+centroids[i][j]);
-		
-						}
-					}
-					
-				}
-				if(!updated) break;
-			}
-			
-			return groupAssignments;
+		int[] doKMeans(SPDA_Sample_Table allRows, int kmeans, int maxIterations){
+			SPDA_Sample_Table sampletable = SPDA_Sampling.subsample(allRows, options);
+			SPDA_KMeans kMeans = new SPDA_KMeans(kmeans, maxIterations, options);
+			int[] groupAssignments = kMeans.fit(sampletable);
+			if(sampletable == allRows) return groupAssignments;
+			return kMeans.assign(allRows);
 		}
 		
 		
@@ -21,10 +21,10 @@ public class SPDA_PS_Mapped extends SPDA_PS_Image {
 		slices = 1;
 		frames = 1;
 		if(masked) {
-			mask = getMask(imp);
+			mask = SPDA_Mask.fromImage(imp);
 			channels--;
 		} else {
-			mask = blankMask();
+			mask = SPDA_Mask.allInclusive(width, height, slices, frames);
 		}
 	}
 	
@@ -34,14 +34,14 @@ public class SPDA_PS_Mapped extends SPDA_PS_Image {
 	 * @return
 	 */
 	@Override
-	public double[][] analyse(float[] kernel){ 
+	public SPDA_Sample_Table analyse(float[] kernel){ 
 		FloatProcessor[][][] floats = new FloatProcessor[1][1][channels];
 		ImageStack stack = imp.getStack();
 		for(int i = 0; i<channels; i++) {
 			floats[0][0][i] = (FloatProcessor) stack.getProcessor(imp.getStackIndex(i+1, 1, 1));
 		}
-		proportions = sample(floats);
-		return proportions;
+		samples = sample(floats);
+		return samples;
 	}
 	
 }
@@ -3,18 +3,15 @@ package src.main.java.polydimensionalpixelspace;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.StringTokenizer;
+import java.util.Arrays;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * <p>This package implements Image PCA functionality: the ability to run a principle components analysis on either the distribution of
@@ -31,7 +28,12 @@ import org.w3c.dom.NodeList;
 
 
 public class SPDA_PS_Positional extends SPDA_PS_Image {
+	/**
+	 * Largest number of malformed entries of a positional file that are logged individually
+	 */
+	static final int MAX_LOGGED_ERRORS = 20;
 	String posPath;
+	SPDA_Point_List points = new SPDA_Point_List();
 	
 	/**
 	 * Main constructor
@@ -52,7 +54,7 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 		this.frames = frames;
 		this.zDiff = zDiff;
 		useMask = false;
-		mask = blankMask();
+		mask = SPDA_Mask.allInclusive(width, height, slices, frames);
 		splitMask = false;
 		this.posPath = posPath;
 		if(posPath.endsWith(".xml")){
@@ -77,7 +79,7 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 		this(posPath,maskImp.getWidth(), maskImp.getHeight(),maskImp.getNSlices(),maskImp.getNFrames(), maskImp.getCalibration().pixelDepth/ maskImp.getCalibration().pixelWidth);
 		useMask = true;
 		this.splitMask = splitMask;
-		mask = SPDA_PS_Image.getMask(maskImp);
+		mask = SPDA_Mask.fromImage(maskImp);
 		maskImp.close();
 		
 	}
@@ -98,7 +100,7 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 		slices = chan1[0][0].length;
 		frames = chan1[0][0][0].length;
 		useMask = true;
-		mask = blankMask();
+		mask = SPDA_Mask.allInclusive(width, height, slices, frames);
 		splitMask = false;
 		populateLocationMap(markers);
 		
@@ -106,6 +108,123 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 
 
 	
+	/**
+	 * 
+	 * Runs the first step of the analysis: blurring and gathering data from each image. If splatting is selected in the options, the 
+	 * marked points are splatted rather than blurred.
+	 * 
+	 * @param kernel		Blurring kernel
+	 */
+	@Override
+	public SPDA_Sample_Table analyse(float[] kernel){
+		if(options.blurMode == SPDA_Pixelspace.BLUR_SPLAT){
+			samples = sample(splatBlurWithMask(points, kernel));
+			return samples;
+		}
+		return super.analyse(kernel);
+	}
+	
+	/**
+	 * 
+	 * Produces the same blurred occupancy values as blurWithMask (or splitBlurWithMask, if using a segregating mask) by adding the kernel 
+	 * footprint of each marked point directly into the output, so that the time taken depends on the number of points rather than the 
+	 * size of the image. 
+	 * 
+	 * <p>The masking of the separable blur is applied to each point: the point must lie in a region (its own region, if segregating), and 
+	 * it only reaches pixels that are in that region both in the slice of the point (where the XY blur is masked) and in the output slice.</p>
+	 * 
+	 * <p>The work is split by output plane, and each plane adds up its points in the same order, so the results do not depend on the number of threads.</p>
+	 * 
+	 * @param points	The marked points
+	 * @param kernel	The blurring kernel
+	 * @return		An array of images representing the blurred colour occupancy values
+	 */
+	protected FloatProcessor[][][] splatBlurWithMask(final SPDA_Point_List points, final float[] kernel){
+		final int[][] pointsByPlane = points.byPlane(slices, frames);
+		final int[] support = zSupport(kernel.length);
+		final int halfKernel = kernel.length/2;
+		final int planes = slices*frames;
+		final FloatProcessor[][][] output = new FloatProcessor[slices][frames][channels];
+		for(int z = 0; z<slices; z++){
+			for(int t = 0; t<frames; t++){
+				for(int c = 0; c<channels; c++){
+					output[z][t][c] = new FloatProcessor(width,height);
+				}
+			}
+		}
+		
+		SPDA_Parallel.forRange(options.threads, 0, planes, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				float[][] plane = new float[channels+1][];
+				plane[channels] = new float[width*height];
+				for(int p = from; p<to; p++){
+					int t = p/slices;
+					int z = p%slices;
+					IJ.showStatus("Splatting: "+SPDA_Pixelspace.NF.format(p/(double)planes*100)+"%");
+					for(int c = 0; c<channels; c++){
+						plane[c] = (float[]) output[z][t][c].getPixels();
+					}
+					Arrays.fill(plane[channels], 0.0f);
+					int pzStart = Math.max(0, z-support[1]);
+					int pzEnd = Math.min(slices-1, z-support[0]);
+					for(int pz = pzStart; pz<=pzEnd; pz++){
+						int kernelIndex = (int)(halfKernel+Math.round((z-pz)*zDiff));
+						if(kernelIndex<0 || kernelIndex>kernel.length-1) continue;
+						int[] planePoints = pointsByPlane[t*slices+pz];
+						for(int i = 0; i<planePoints.length; i++){
+							splatPoint(points, planePoints[i], kernel, kernel[kernelIndex], z, plane);
+						}
+					}
+					for(int i = 0; i<width*height; i++){
+						float sum = plane[channels][i];
+						if(sum > 0.0f){
+							for(int c = 0; c<channels; c++){
+								plane[c][i] = plane[c][i]/sum;
+							}
+						}
+					}
+				}
+			}
+		});
+		return output;
+	}
+	
+	/**
+	 * Adds the kernel footprint of a single point to an output plane
+	 * 
+	 * @param i		Index of the point
+	 * @param kernelZ	The kernel value for the distance between the slice of the point and the output slice
+	 * @param z		The output slice
+	 * @param plane		The output plane for each colour, followed by the occupancy sum
+	 */
+	private void splatPoint(SPDA_Point_List points, int i, float[] kernel, float kernelZ, int z, float[][] plane){
+		int px = points.getX(i);
+		int py = points.getY(i);
+		int pz = points.getZ(i);
+		int t = points.getT(i);
+		int c = points.getChannel(i);
+		int targetMask = -1;
+		if(useMask){
+			int region = mask.get(px, py, pz, t);
+			if(region<=0) return;
+			if(splitMask) targetMask = region;
+		}
+		int halfKernel = kernel.length/2;
+		int yStart = Math.max(0, py+halfKernel-kernel.length+1);
+		int yEnd = Math.min(height-1, py+halfKernel);
+		int xStart = Math.max(0, px+halfKernel-kernel.length+1);
+		int xEnd = Math.min(width-1, px+halfKernel);
+		for(int y = yStart; y<=yEnd; y++){
+			float kernelYZ = kernel[py-y+halfKernel]*kernelZ;
+			for(int x = xStart; x<=xEnd; x++){
+				if(!inMask(x,y,pz,t,targetMask) || !inMask(x,y,z,t,targetMask)) continue;
+				float weight = kernelYZ*kernel[px-x+halfKernel];
+				plane[c][y*width+x] += weight;
+				plane[channels][y*width+x] += weight;
+			}
+		}
+	}
+	
 	/**
 	 * 
 	 * Runs the first step of the analysis: blurring and gathering data from each image.
@@ -118,6 +237,7 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 	 * @param normAll		If true, normalise each pixel so that the sum of colours is equal to 1, correcting for regional density/brightness variations
 	 * @param addDensity		If true, take the density of colour as an additional variable
 	 * @param normDensity		If true, normalise the density values so that the most dense region is 1.
+	 * @return			The colour values of the sample table, arranged row/colour
 	 */
 
 	public double[][] analyse(boolean blurWithMask, float[] kernel, boolean propOfColour, boolean propOfTotal, boolean normColour, boolean normAll, boolean addDensity, boolean normDensity, double zDiff, boolean useMask){
@@ -126,10 +246,10 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 		if(blurWithMask){
 			blurred = splitBlurWithMask(locationMap, kernel);
 		} else {
-			blurred =blurWithMask(locationMap, kernel,-1);
+			blurred =blur(locationMap, kernel,-1);
 		}
-		proportions =  sample(blurred);
-		return proportions;
+		samples =  sample(blurred);
+		return samples.toArray();
 	}
 	
 	
@@ -137,188 +257,224 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 
 	/**
 	 * 
-	 * Populates location table from an XML file from Kurt De Vos' Cell Counter plugin. Modified from that plugin.
+	 * Populates location table from an XML file from Kurt De Vos' Cell Counter plugin. The file is streamed (StAX) rather than parsed 
+	 * into a document, so files with millions of markers can be read in little memory. Each Marker_Type is a channel. 
+	 * 
+	 * Markers give MarkerX, MarkerY and MarkerZ, and optionally MarkerT (1-indexed). Without MarkerT, a MarkerZ beyond the number of 
+	 * slices of a time series is taken as the position in a slice/frame stack. Markers that are incomplete, not numbers or outside the 
+	 * image are skipped, and their line numbers are logged.
 	 * 
 	 * @param path
 	 */
 	
 	private void importCellCounter(String path){
+		SPDA_Point_List markers = new SPDA_Point_List();
+		ArrayList<String> typeNames = new ArrayList<String>();
+		int markerTypes = 0;
+		int malformed = 0;
+		XMLStreamReader reader = null;
+		FileInputStream in = null;
 		try{
-			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			Document doc = db.parse(new File(path));
-	        
-	        NodeList markerTypeNodeList = doc.getElementsByTagName("Marker_Type");
-	        channels = markerTypeNodeList.getLength();
-	        locationMap = new boolean[width][height][slices][channels][frames];
-	        for (int i=0; i<channels; i++){
-	            Element markerTypeElement = (Element)markerTypeNodeList.item(i);
-	            
-	            NodeList markerNodeList = markerTypeElement.getElementsByTagName("Marker");
-	            for(int j=0; j<markerNodeList.getLength(); j++){
-	                Element markerElement = (Element)markerNodeList.item(j);
-	                NodeList markerXNodeList = markerElement.getElementsByTagName("MarkerX");
-	                NodeList markerYNodeList = markerElement.getElementsByTagName("MarkerY");
-	                NodeList markerZNodeList = markerElement.getElementsByTagName("MarkerZ");
-	                int x = Integer.parseInt(readValue(markerXNodeList,0));
-	                int y = (Integer.parseInt(readValue(markerYNodeList,0)));
-	                int z = (Integer.parseInt(readValue(markerZNodeList,0)));
-	                locationMap[x][y][z-1][i][0]=true;
-	            }
-	        }
-		} catch (Exception e){
-			IJ.log("Error Reading XML File");
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			in = new FileInputStream(path);
+			reader = factory.createXMLStreamReader(in);
+			
+			int x = 0, y = 0, z = 0, t = 0;
+			int markerLine = 0;
+			String problem = null;
+			while(reader.hasNext()){
+				int event = reader.next();
+				if(event == XMLStreamConstants.START_ELEMENT){
+					String name = reader.getLocalName();
+					if(name.equals("Marker_Type")){
+						markerTypes++;
+						typeNames.add(null);
+					} else if((name.equals("Name") || name.equals("Type")) && markerTypes>0){
+						//The name of the marker type, or failing that its number
+						String text = reader.getElementText().trim();
+						if(name.equals("Name")) typeNames.set(markerTypes-1, text);
+						else if(typeNames.get(markerTypes-1) == null) typeNames.set(markerTypes-1, "Type "+text);
+					} else if(name.equals("Marker")){
+						markerLine = reader.getLocation().getLineNumber();
+						x = y = z = t = Integer.MIN_VALUE;
+						problem = markerTypes == 0 ? "outside a Marker_Type" : null;
+					} else if(name.equals("MarkerX") || name.equals("MarkerY") || name.equals("MarkerZ") || name.equals("MarkerT")){
+						String text = reader.getElementText().trim();
+						int value = Integer.MIN_VALUE;
+						try{
+							value = (int) Math.round(Double.parseDouble(text));
+						} catch (NumberFormatException e){
+							if(problem == null) problem = name+" is not a number (\""+text+"\")";
+						}
+						if(name.equals("MarkerX")) x = value;
+						else if(name.equals("MarkerY")) y = value;
+						else if(name.equals("MarkerZ")) z = value;
+						else t = value;
+					}
+				} else if(event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("Marker")){
+					if(problem == null){
+						if(x == Integer.MIN_VALUE || y == Integer.MIN_VALUE || z == Integer.MIN_VALUE){
+							problem = "missing MarkerX, MarkerY or MarkerZ";
+						} else {
+							if(t == Integer.MIN_VALUE){
+								t = 1;
+								if(z>slices && frames>1){
+									t = (z-1)/slices+1;
+									z = (z-1)%slices+1;
+								}
+							}
+							if(x<0 || x>=width || y<0 || y>=height || z<1 || z>slices || t<1 || t>frames){
+								problem = "outside the image ("+x+", "+y+", "+z+", "+t+")";
+							}
+						}
+					}
+					if(problem == null){
+						markers.add(x, y, z-1, t-1, markerTypes-1);
+					} else {
+						malformed++;
+						if(malformed<=MAX_LOGGED_ERRORS){
+							IJ.log("Skipping marker at line "+markerLine+" of "+path+": "+problem);
+						}
+					}
+				}
+			}
+		} catch (XMLStreamException e){
+			int line = e.getLocation() == null ? -1 : e.getLocation().getLineNumber();
+			IJ.log("Error Reading XML File "+path+" at line "+line+": "+e.getMessage());
+		} catch (IOException e){
+			IJ.log("Error Reading XML File "+path+": "+e.getMessage());
+		} finally {
+			try{
+				if(reader != null) reader.close();
+				if(in != null) in.close();
+			} catch (Exception e){
+			}
+		}
+		if(malformed>MAX_LOGGED_ERRORS){
+			IJ.log(malformed+" markers skipped in "+path);
 		}
 		
+		channels = markerTypes;
+		channelNames = typeNames.toArray(new String[typeNames.size()]);
+		locationMap = new SPDA_Occupancy(width, height, slices, channels, frames);
+		for(int i = 0; i<markers.size(); i++){
+			if(locationMap.add(markers.getX(i), markers.getY(i), markers.getZ(i), markers.getChannel(i), markers.getT(i))){
+				points.add(markers.getX(i), markers.getY(i), markers.getZ(i), markers.getT(i), markers.getChannel(i));
+			}
+		}
 	}
 	
 	/**
 	 * 
-	 * Necessary Utility method from Cell Counter by Kurt De Vos
-	 * 
-	 * @param nodeList
-	 * @param index
-	 * @return
-	 * @throws NullPointerException
-	 */
-	
-	 private String readValue(NodeList nodeList, int index) throws NullPointerException{
-	        Element element = (Element)nodeList.item(index);
-	        NodeList elementNodeList = element.getChildNodes();
-	        String str = elementNodeList.item(0).getNodeValue().trim();
-	        return str;
-	  }
-	
-	/**
-	 * 
-	 * Populates locationMap from MtrackJ file. Heavily adapted from run method of MTJ_Reader by Erik Meijering.
+	 * Populates locationMap from MtrackJ file. Adapted from run method of MTJ_Reader by Erik Meijering: every Point line is read, whichever
+	 * assembly, cluster and track it belongs to. Points outside the image are moved to its edge, as before.
 	 * 
 	 * @param path	Path to MtrackJ file
 	 */
 	
 	private void importMTrackJ(String path){
-		ArrayList<boolean[][][][]> channelArrays = new ArrayList<boolean[][][][]>();
-		locationMap = new boolean[width][height][slices][channels][frames];
-		BufferedReader br = null;
-		
-
-		
+		SPDA_Point_List list = new SPDA_Point_List();
+		SPDA_Text_Scanner scanner = null;
+		int malformed = 0;
 		try {
-			
-			br = new BufferedReader(new FileReader(path));
-			String line = br.readLine();			
-			line = br.readLine(); 
-			if (line.startsWith("Displaying")) {
-				line = br.readLine(); 
-			}
-			if (line.startsWith("Offset")) {
-				line = br.readLine(); 
-			}
-			if (line.startsWith("Origin") || line.startsWith("Reference")) {
-				line = br.readLine();
-			}
-			while (line.startsWith("Assembly")) {
-				line = br.readLine();
-				while (line.startsWith("Cluster")) {
-					line = br.readLine();
-					while (line.startsWith("Track")) {
-						line = br.readLine();
-						while (line.startsWith("Point")) {
-							final StringTokenizer pitems = new StringTokenizer(line);
-							pitems.nextToken(); // Skip "Point"
-							pitems.nextToken(); // Skip Point ID
-							int x = (int) Math.round(Double.parseDouble(pitems.nextToken()));
-							int y = (int) Math.round(Double.parseDouble(pitems.nextToken()));
-							int z = (int) Math.round(Double.parseDouble(pitems.nextToken()));
-							int t = (int) Math.round(Double.parseDouble(pitems.nextToken()));
-							int c = (int) Math.round(Double.parseDouble(pitems.nextToken()));
-							
-							if(x<0) x = 0;
-							if(y<0) y = 0;
-							if(z<1) z = 1;
-							if(t<1) t = 1;
-							if(c<1) c = 1;
-							
-							if(x>= width) x = width-1;
-							if(y>=height) y = height-1;
-							if(z>slices) z = slices;
-							if(t>frames) t = frames;
-
-							
-							//IJ.log(x+"/"+width+" "+y+"/"+height+" "+z+"/"+slices+" "+t+"/"+frames+" "+c+"/"+channels);
-							
-							while(channelArrays.size()<c) {
-								channelArrays.add(new boolean[width][height][slices][frames]);
-							}
-							channelArrays.get(c-1)[x][y][z-1][t-1] = true;
-							
-							line = br.readLine();
-							
-						}
+			scanner = new SPDA_Text_Scanner(path);
+			while(scanner.nextLine()){
+				if(!scanner.startsWith("Point")) continue;
+				try{
+					scanner.skipToken(); // Skip "Point"
+					scanner.skipToken(); // Skip Point ID
+					int x = (int) Math.round(scanner.nextDouble());
+					int y = (int) Math.round(scanner.nextDouble());
+					int z = (int) Math.round(scanner.nextDouble());
+					int t = (int) Math.round(scanner.nextDouble());
+					int c = (int) Math.round(scanner.nextDouble());
+					
+					if(x<0) x = 0;
+					if(y<0) y = 0;
+					if(z<1) z = 1;
+					if(t<1) t = 1;
+					if(c<1) c = 1;
+					
+					if(x>= width) x = width-1;
+					if(y>=height) y = height-1;
+					if(z>slices) z = slices;
+					if(t>frames) t = frames;
+					
+					list.add(x, y, z-1, t-1, c-1);
+				} catch (NumberFormatException e){
+					malformed++;
+					if(malformed<=MAX_LOGGED_ERRORS){
+						IJ.log("Skipping point at line "+scanner.getLineNumber()+" of "+path+": "+e.getMessage());
 					}
 				}
 			}
-			populateLocationMap(channelArrays);
-			br.close(); 
-			
 		} catch(OutOfMemoryError e) {
 			IJ.log("Out of memory while reading from \""+path+"\"");
-			try { br.close(); } catch (Throwable x) { }
-			
-		} catch (Throwable e) {
+		} catch (IOException e) {
 			IJ.log("Could not read or interpret file");
 			e.printStackTrace();
 			IJ.error("An error occurred while reading from \""+path+"\"");
-			try { br.close(); } catch (Throwable x) { }
+		} finally {
+			if(scanner != null) scanner.close();
 		}
-
+		if(malformed>MAX_LOGGED_ERRORS){
+			IJ.log(malformed+" points skipped in "+path);
+		}
+		populateLocationMap(list, null);
 	}
 	
 	/**
 	 * 
-	 * Populates the location map from the ArrayList of multidimensional boolean arrays used by importCategoriser and importMTrackJ.
+	 * Populates the location map from the ArrayList of multidimensional boolean arrays used by the Confetti_Assessment_Simulator.
 	 * 
 	 * @param channelArrays
 	 */
 	
 	private void populateLocationMap(ArrayList<boolean[][][][]> channelArrays){
-		// Convert and store boolean array
-		channels = channelArrays.size();
-		int count = 0;
-		
-		//Remove any blank channels (which may occur if positional file channels are not sequential)
-		chanloop:
-		for(int c = 0; c<channels; c++) {
+		SPDA_Point_List list = new SPDA_Point_List();
+		for(int c = 0; c<channelArrays.size(); c++){
 			boolean[][][][] thisChannel = channelArrays.get(c);
 			for(int t = 0; t<frames; t++){
 				for(int z = 0; z<slices; z++){
 					for(int x = 0; x<width; x++){
 						for(int y= 0; y<height; y++){
-							if(thisChannel[x][y][z][t]) continue chanloop;
+							if(thisChannel[x][y][z][t]){
+								list.add(x, y, z, t, c);
+							}
 						}
 					}
 				}
 			}
-			channelArrays.remove(c);
-			c--;
-			channels--;
 		}
-		
-		locationMap = new boolean[width][height][slices][channels][frames];
+		populateLocationMap(list, null);
+	}
+	
+	/**
+	 * 
+	 * Populates the location map and points from a list of points read by importCategoriser and importMTrackJ. Duplicate points are removed,
+	 * as are any blank channels.
+	 * 
+	 * @param list		Points, which become the points of this image
+	 * @param names		Name of each channel of the file, or null - channels without a name are named by their number in the file
+	 */
+	
+	private void populateLocationMap(SPDA_Point_List list, String[] names){
+		list.sortUnique(width, height, slices, frames);
+		int[] original = list.compactChannels();
+		channels = original.length;
+		channelNames = new String[channels];
 		for(int c = 0; c<channels; c++){
-			boolean[][][][] thisChannel = channelArrays.get(c);
-			for(int t = 0; t<frames; t++){
-				for(int z = 0; z<slices; z++){
-					for(int x = 0; x<width; x++){
-						for(int y= 0; y<height; y++){
-							if(thisChannel[x][y][z][t]) count++;
-							locationMap[x][y][z][c][t] = thisChannel[x][y][z][t];
-						}
-					}
-				}
-			}
+			boolean named = names != null && original[c]<names.length && names[original[c]] != null;
+			channelNames[c] = named ? names[original[c]] : "C"+(original[c]+1);
 		}
-		IJ.log(count+" points logged");
+		locationMap = new SPDA_Occupancy(width, height, slices, channels, frames);
+		for(int i = 0; i<list.size(); i++){
+			locationMap.set(list.getX(i), list.getY(i), list.getZ(i), list.getChannel(i), list.getT(i));
+		}
+		points = list;
+		IJ.log(list.size()+" points logged");
 	}
 	
 	
@@ -326,47 +482,62 @@ public class SPDA_PS_Positional extends SPDA_PS_Image {
 	 * 
 	 * Populates locationMap from a tab separated values file.
 	 * 
-	 * Different cell categories are split by a line which starts with the word 'CATEGORY'. This is equivalent to the 'channels'.
-	 * The cell parameters must be provided in the format X Y Z T, separated by tabs. Z and T are optional columns. If three columns
-	 * are provided the third column is assumed to be Z, not T. Therefore for a flat video, a Z value of 1 must be provided for each
-	 * data point.
+	 * Different cell categories are split by a line which starts with the word 'CATEGORY', optionally followed by the name of the category. 
+	 * This is equivalent to the 'channels'.
+	 * The cell parameters must be provided in the format X Y Z T, separated by tabs. Z and T are optional columns, and default to 1. If three 
+	 * columns are provided the third column is assumed to be Z, not T. Therefore for a flat video, a Z value of 1 must be provided for each
+	 * data point. Lines that are not numbers or lie outside the image are logged and skipped.
 	 * 
 	 * @param path		Path to file.
 	 * 
 	 */
 	private void importCategoriser(String path){
+		SPDA_Point_List list = new SPDA_Point_List();
+		ArrayList<String> names = new ArrayList<String>();
+		SPDA_Text_Scanner scanner = null;
+		int malformed = 0;
 		try{
-			ArrayList<boolean[][][][]> channelArrays = new ArrayList<boolean[][][][]>();
-			BufferedReader reader = new BufferedReader(new FileReader(new File(path)));
-			int currentChannel = 0;
-			while(true){
-				String line = reader.readLine();
-				if(line == null){
-					break;
-				} else if (line.startsWith("CATEGORY")){
-					channelArrays.add(new boolean[width][height][slices][frames]);
+			scanner = new SPDA_Text_Scanner(path);
+			int currentChannel = -1;
+			while(scanner.nextLine()){
+				if(scanner.startsWith("CATEGORY")){
 					currentChannel++;
-				} else {
-					String[] lineParts = line.split("\t");
-					int t=0,z=0;
-					int x = Integer.parseInt(lineParts[0]);
-					int y = Integer.parseInt(lineParts[1]);
-					if(lineParts.length>2){
-						z = Integer.parseInt(lineParts[2]);
+					scanner.skipToken();
+					String name = scanner.rest();
+					names.add(name.length()>0 ? name : "Category "+(currentChannel+1));
+					continue;
+				}
+				if(!scanner.hasToken()) continue;
+				String problem = null;
+				try{
+					int x = (int) Math.round(scanner.nextDouble());
+					int y = (int) Math.round(scanner.nextDouble());
+					int z = scanner.hasToken() ? (int) Math.round(scanner.nextDouble()) : 1;
+					int t = scanner.hasToken() ? (int) Math.round(scanner.nextDouble()) : 1;
+					if(x<0 || x>=width || y<0 || y>=height || z<1 || z>slices || t<1 || t>frames){
+						problem = "outside the image ("+x+", "+y+", "+z+", "+t+")";
+					} else {
+						list.add(x, y, z-1, t-1, Math.max(currentChannel, 0));
 					}
-					if(lineParts.length>3){
-						t = Integer.parseInt(lineParts[3]);
+				} catch (NumberFormatException e){
+					problem = e.getMessage();
+				}
+				if(problem != null){
+					malformed++;
+					if(malformed<=MAX_LOGGED_ERRORS){
+						IJ.log("Skipping line "+scanner.getLineNumber()+" of "+path+": "+problem);
 					}
-					channelArrays.get(currentChannel)[x][y][z-1][t-1] = true;
 				}
 			}
-			reader.close();
-			populateLocationMap(channelArrays);
-		} catch (Exception e){
+		} catch (IOException e){
 			IJ.showMessage("Error Reading File");
 			e.printStackTrace();
+		} finally {
+			if(scanner != null) scanner.close();
 		}
-		
-		
+		if(malformed>MAX_LOGGED_ERRORS){
+			IJ.log(malformed+" lines skipped in "+path);
+		}
+		populateLocationMap(list, names.toArray(new String[names.size()]));
 	}
 }
@@ -6,6 +6,8 @@ import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * <p>This package implements Image PCA functionality: the ability to run a principle components analysis on either the distribution of
  * thresholded pixel values, or the positions of exactly specified points. Outputs are a PCA Table, and a visualisation of the result mapped
@@ -14,6 +16,10 @@ import ij.process.ImageProcessor;
  * <p>This class represents an image that includes thresholded voxel information. Images provided must be thresholded via the Min/Max brightness
  * controls (the minimum is used as the threshold).</p>
  * 
+ * <p>The thresholded channels and the mask are read in one pass over the stack, so each plane of a virtual stack is only loaded once. Planes
+ * are thresholded in parallel, and 8 and 16-bit planes straight from their pixel arrays. ImageJ's virtual stacks are not thread-safe, so 
+ * the planes of a virtual stack are loaded one at a time.</p>
+ * 
  * @author John MJ Lapage
  * @version 1.0
  * 
@@ -23,10 +29,18 @@ public class SPDA_PS_Thresholded extends SPDA_PS_Image {
 
 	
 	public SPDA_PS_Thresholded(ImagePlus impIn, boolean masked, boolean splitMask){
+		this(impIn, masked, splitMask, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * @param options	Optional settings of the analysis; the number of threads is used to read the image
+	 */
+	public SPDA_PS_Thresholded(ImagePlus impIn, boolean masked, boolean splitMask, SPDA_Options options){
 		imp=impIn;
+		this.options = options;
 		useMask = masked;
 		this.splitMask = splitMask;
-		if(!useMask) mask = blankMask();
 		populate();
 	}
 
@@ -45,11 +59,7 @@ public class SPDA_PS_Thresholded extends SPDA_PS_Image {
 		slices = imp.getNSlices();
 		Calibration calib = imp.getCalibration();
 		zDiff = calib.pixelHeight/calib.pixelWidth;
-		locationMap = this.thresholdMap();
-		if(useMask){
-			mask = SPDA_PS_Image.getMask(imp);
-			channels--;
-		} 
+		readStack();
 	}
 	
 
@@ -58,34 +68,91 @@ public class SPDA_PS_Thresholded extends SPDA_PS_Image {
 	
 	/**
 	 *
-	 * Reads the image for positive (255) pixels and remaps the image as a boolean array.
-	 * 
-	 * @param stack	
-	 * @return map	A zero-indexed five dimensional boolean map arranged X/Y/Slice/Channel/Frame, showing which pixels are occupied by values above the threshold.
+	 * Reads the image for positive (255) pixels and remaps the image as an occupancy map. If a mask is used, the last channel is also read 
+	 * as the mask in the same pass.
 	 *   
 	 */
-	private boolean[][][][][] thresholdMap(){	
-		ImageStack stack = imp.getStack();
-		boolean[][][][][] map = new boolean[width][height][slices][channels][frames];
+	private void readStack(){
+		final ImageStack stack = imp.getStack();
+		final int imageChannels = channels;
+		final int planes = slices*frames;
+		final SPDA_Occupancy map = new SPDA_Occupancy(width, height, slices, imageChannels, frames);
+		final ImageProcessor[] maskPlanes = useMask ? new ImageProcessor[planes] : null;
+		final int[] maxRegions = new int[planes];
+		final AtomicInteger done = new AtomicInteger();
+		final boolean virtual = stack.isVirtual();
 		
-		for(int t = 0; t<frames; t++){
-			for(int z=0; z<slices; z++){
-				for(int c = 0; c<channels; c++){
-					ImageProcessor ip = stack.getProcessor(imp.getStackIndex(c+1, z+1, t+1));
-					for(int x = 0; x<width;x++){
-						IJ.showStatus("Logging Pixel Locations "+SPDA_Pixelspace.NF.format((double)x/(double)width*100)+"%");
-						for(int y=0; y<height; y++){
-							if(ip.getPixel(x,y)==255){
-								map[x][y][z][c][t] = true;
-							} else {
-								map[x][y][z][c][t] = false;
+		SPDA_Parallel.forRange(options.threads, 0, planes, 1, new SPDA_Parallel.Body(){
+			public void run(int from, int to){
+				for(int p = from; p<to; p++){
+					int t = p/slices;
+					int z = p%slices;
+					for(int c = 0; c<imageChannels; c++){
+						int index = imp.getStackIndex(c+1, z+1, t+1);
+						ImageProcessor ip;
+						if(virtual){
+							synchronized(stack){
+								ip = stack.getProcessor(index);
 							}
-							
+						} else {
+							ip = stack.getProcessor(index);
+						}
+						threshold(ip, map, z, c, t);
+						if(maskPlanes != null && c == imageChannels-1){
+							maskPlanes[p] = ip;
+							maxRegions[p] = SPDA_Mask.maxRegion(ip);
 						}
 					}
+					IJ.showStatus("Logging Pixel Locations "+SPDA_Pixelspace.NF.format((double)done.incrementAndGet()/(double)planes*100)+"%");
+				}
+			}
+		});
+		
+		locationMap = map;
+		if(useMask){
+			int maxRegion = 0;
+			for(int p = 0; p<planes; p++){
+				maxRegion = Math.max(maxRegion, maxRegions[p]);
+			}
+			mask = SPDA_Mask.fromPlanes(maskPlanes, slices, frames, maxRegion, imp.getTitle());
+			channels--;
+		} else {
+			mask = SPDA_Mask.allInclusive(width, height, slices, frames);
+		}
+	}
+	
+	/**
+	 * 
+	 * Sets the pixels of one plane that equal 255 in the occupancy map, a row at a time. Each row of the map is written a whole word at a time,
+	 * so planes can be thresholded on different threads.
+	 * 
+	 */
+	private void threshold(ImageProcessor ip, SPDA_Occupancy map, int z, int c, int t){
+		Object pixels = ip.getPixels();
+		byte[] bytes = pixels instanceof byte[] ? (byte[]) pixels : null;
+		short[] shorts = pixels instanceof short[] ? (short[]) pixels : null;
+		long[] words = map.getWords();
+		for(int y = 0; y<height; y++){
+			int row = map.rowIndex(y, z, c, t);
+			int offset = y*width;
+			for(int x0 = 0; x0<width; x0 += 64){
+				int x1 = Math.min(width, x0+64);
+				long word = 0L;
+				if(bytes != null){
+					for(int x = x0; x<x1; x++){
+						if((bytes[offset+x] & 0xff) == 255) word |= 1L<<x;
+					}
+				} else if(shorts != null){
+					for(int x = x0; x<x1; x++){
+						if((shorts[offset+x] & 0xffff) == 255) word |= 1L<<x;
+					}
+				} else {
+					for(int x = x0; x<x1; x++){
+						if(ip.getPixel(x,y) == 255) word |= 1L<<x;
+					}
 				}
+				words[row+(x0>>>6)] = word;
 			}
 		}
-		return map;
 	}
 }
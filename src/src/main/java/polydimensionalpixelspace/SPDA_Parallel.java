@@ -0,0 +1,94 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * Fork-join utilities shared by the multi-threaded parts of the analysis. Work is described as a range of indices (planes, row bands,
+ * column tiles, table rows...) which is split in half until each part is no larger than the grain.
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+class SPDA_Parallel {
+	private static ForkJoinPool pool;
+
+	/**
+	 * The work done on each part of a range
+	 */
+	interface Body {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Converts a user-specified thread count into the number of threads to use: 0 or less means all available processors.
+	 *
+	 * @param threads	User-specified thread count
+	 * @return		Number of threads to use
+	 */
+	static int threads(int threads){
+		if(threads<=0){
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return threads;
+	}
+
+	/**
+	 * Runs the body over the range [from, to). With a single thread, the body is run once over the whole range on the calling thread.
+	 *
+	 * @param threads	Number of threads to use (see threads(int))
+	 * @param from		First index of the range
+	 * @param to		End of the range (exclusive)
+	 * @param grain		Largest part of the range that is not split further
+	 * @param body		The work to be done
+	 */
+	static void forRange(int threads, int from, int to, int grain, Body body){
+		threads = threads(threads);
+		if(to<=from) return;
+		if(threads == 1 || to-from<=grain){
+			body.run(from, to);
+		} else {
+			getPool(threads).invoke(new Range(body, from, to, Math.max(1, grain)));
+		}
+	}
+
+	/**
+	 * Calculates a grain that splits the range into roughly four parts per thread
+	 */
+	static int grain(int threads, int length){
+		return Math.max(1, length/(threads(threads)*4));
+	}
+
+	private static synchronized ForkJoinPool getPool(int threads){
+		if(pool == null || pool.getParallelism() != threads){
+			if(pool != null) pool.shutdown();
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	private static class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Body body;
+		private final int from, to, grain;
+
+		Range(Body body, int from, int to, int grain){
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute(){
+			if(to-from<=grain){
+				body.run(from, to);
+			} else {
+				int mid = (from+to)>>>1;
+				invokeAll(new Range(body, from, mid, grain), new Range(body, mid, to, grain));
+			}
+		}
+	}
+}
@@ -3,15 +3,14 @@ package src.main.java.polydimensionalpixelspace;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
-import Jama.EigenvalueDecomposition;
-import Jama.Matrix;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.GaussianBlur;
@@ -35,6 +34,10 @@ public class SPDA_Pixelspace implements PlugIn{
 	public static final String[] POSITIONALFORMATS = new String[]{"mtj","mdf","txt","csv","xml"};
 	public static final String[] IMAGEFORMATS = new String[]{"tiff","tif"};
 	public static final int PCA_MODE = 1, K_MODE = 2;
+	public static final int BLUR_CONVOLVE = 1, BLUR_RECURSIVE = 2, BLUR_SPLAT = 3;
+	public static final int SAMPLE_ALL = 1, SAMPLE_GRID = 2, SAMPLE_RANDOM = 3, SAMPLE_STRATIFIED = 4;
+	public static final int KMEANS_LLOYD = 1, KMEANS_HAMERLY = 2, KMEANS_MINIBATCH = 3;
+	public static final int KMEANS_INIT_RANDOM = 1, KMEANS_INIT_PLUSPLUS = 2;
 
 	public static final DecimalFormat NF = new DecimalFormat("#.00");
 
@@ -52,21 +55,36 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * @param kmeansMode	If true, perform k-means analysis
 	 * @param kGroups		If in k-means mode, number of K groups (ignored if PCA mode)
 	 * @param kIter			If in k-means mode, number of permitted iterations for k-means analysis(ignored if PCA mode)
+	 * @return			The results, which are also shown
 	 * 
 	 */
-	public static void processCurrentImage(boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter){
+	public static ArrayList<SPDA_Results> processCurrentImage(boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter){
+		return processCurrentImage(useMask, splitMask, covariance, sigma, kmeansMode, kGroups, kIter, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * As processCurrentImage, with optional settings
+	 * 
+	 * @param options		Optional settings of the analysis
+	 * @return			The results, which are also shown (so that the PCA model can be saved, for instance) - empty if the analysis failed
+	 * 
+	 */
+	public static ArrayList<SPDA_Results> processCurrentImage(boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter, SPDA_Options options){
 		IJ.log("Processing Current Image");
 
 			ArrayList<SPDA_PS_Image> pcaImages = new ArrayList<SPDA_PS_Image>();
-			pcaImages.add(new SPDA_PS_Thresholded(IJ.getImage(),useMask,splitMask));
-			SPDA_Results result  = coreProcess(pcaImages,true,covariance,sigma, kmeansMode, kGroups,kIter).get(0);
+			pcaImages.add(new SPDA_PS_Thresholded(IJ.getImage(),useMask,splitMask,options));
+			ArrayList<SPDA_Results> results = coreProcess(pcaImages,true,covariance,sigma, kmeansMode, kGroups,kIter,options);
+			if(results.isEmpty()) return results;
+			SPDA_Results result  = results.get(0);
 			result.pdaImp.show();
 			if(!kmeansMode) {
 				result.eigenVectorTable.show("EigenVectors");
 				result.weightingsTable.show("Loadings Matrix");
 				result.results.show("PCA Results");
 			}
-		
+			return results;
 	}
 	
 	/**
@@ -82,14 +100,25 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * 
 	 */
 	public static ArrayList<SPDA_Results> processThresholdedDirectory(String dir, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter){
+		return processThresholdedDirectory(dir, series, useMask, splitMask, covariance, sigma, kmeansMode, kGroups, kIter, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * As processThresholdedDirectory, with optional settings
+	 * 
+	 * @param options		Optional settings of the analysis
+	 * 
+	 */
+	public static ArrayList<SPDA_Results> processThresholdedDirectory(String dir, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter, SPDA_Options options){
 		ArrayList<SPDA_PS_Image> pcaImages = new ArrayList<SPDA_PS_Image>();
 		String[] fileNames = new File(dir).list(new QuickFilter(IMAGEFORMATS));
 		for(int i = 0; i<fileNames.length; i++){
 			ImagePlus imp = IJ.openVirtual(dir+fileNames[i]);
-			pcaImages.add(new SPDA_PS_Thresholded(imp,useMask,splitMask));
+			pcaImages.add(new SPDA_PS_Thresholded(imp,useMask,splitMask,options));
 			imp.close();
 		}
-		return coreProcess(pcaImages,series,covariance,sigma, kmeansMode, kGroups,kIter);
+		return coreProcess(pcaImages,series,covariance,sigma, kmeansMode, kGroups,kIter,options);
 		
 	}
 	
@@ -107,14 +136,25 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * 
 	 */
 	public static ArrayList<SPDA_Results> processThresholdedImageSet(ImagePlus[] imps, boolean closeImps, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter){
+		return processThresholdedImageSet(imps, closeImps, series, useMask, splitMask, covariance, sigma, kmeansMode, kGroups, kIter, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * As processThresholdedImageSet, with optional settings
+	 * 
+	 * @param options		Optional settings of the analysis
+	 * 
+	 */
+	public static ArrayList<SPDA_Results> processThresholdedImageSet(ImagePlus[] imps, boolean closeImps, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter, SPDA_Options options){
 		ArrayList<SPDA_PS_Image> pcaImages = new ArrayList<SPDA_PS_Image>();
 		for(int i = 0; i<imps.length; i++){
-			pcaImages.add(new SPDA_PS_Thresholded(imps[i],useMask,splitMask));
+			pcaImages.add(new SPDA_PS_Thresholded(imps[i],useMask,splitMask,options));
 			if(closeImps){
 				imps[i].close();
 			}
 		}
-		return coreProcess(pcaImages,series,covariance,sigma, kmeansMode, kGroups,kIter);
+		return coreProcess(pcaImages,series,covariance,sigma, kmeansMode, kGroups,kIter,options);
 		
 	}
 	
@@ -136,13 +176,24 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * 
 	 */
 	public static ArrayList<SPDA_Results> processPositionalDirectory(String dir, String tableFilePath, boolean manual, boolean table, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter){
+		return processPositionalDirectory(dir, tableFilePath, manual, table, series, useMask, splitMask, covariance, sigma, kmeansMode, kGroups, kIter, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * As processPositionalDirectory, with optional settings
+	 * 
+	 * @param options		Optional settings of the analysis
+	 * 
+	 */
+	public static ArrayList<SPDA_Results> processPositionalDirectory(String dir, String tableFilePath, boolean manual, boolean table, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kmeansMode, int kGroups, int kIter, SPDA_Options options){
 		File directory = new File(dir);
 		if(!directory.exists()){
 			IJ.showMessage("Invalid Directory");
 			return null;
 		} else {
 			String[] fileNames = directory.list(new QuickFilter(POSITIONALFORMATS));
-			return processPositional(dir,fileNames,tableFilePath,manual,table,series,useMask,splitMask,covariance,sigma, kmeansMode, kGroups, kIter);
+			return processPositional(dir,fileNames,tableFilePath,manual,table,series,useMask,splitMask,covariance,sigma, kmeansMode, kGroups, kIter, options);
 		}
 	}
 	
@@ -163,9 +214,23 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * 
 	 */
 	public static ArrayList<SPDA_Results> processPositional(String dir, String[] fileNames, String tableFilePath, boolean manual, boolean table, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kMeansMode, int kGroups, int kIter){
+		return processPositional(dir, fileNames, tableFilePath, manual, table, series, useMask, splitMask, covariance, sigma, kMeansMode, kGroups, kIter, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * As processPositional, with optional settings
+	 * 
+	 * @param options		Optional settings of the analysis
+	 * 
+	 */
+	public static ArrayList<SPDA_Results> processPositional(String dir, String[] fileNames, String tableFilePath, boolean manual, boolean table, boolean series, boolean useMask, boolean splitMask, boolean covariance, double sigma, boolean kMeansMode, int kGroups, int kIter, SPDA_Options options){
 		double[][] dimensions;
 		ArrayList<SPDA_PS_Image> pcaImages = new ArrayList<SPDA_PS_Image>();
-		String[] maskFiles = new File(dir).list(new QuickFilter(IMAGEFORMATS));
+		SPDA_Manifest manifest = null;
+		if(useMask || !(manual || table)){
+			manifest = SPDA_Manifest.of(dir, options.threads);
+		}
 
 		
 		if(manual){
@@ -176,31 +241,29 @@ public class SPDA_Pixelspace implements PlugIn{
 		} else if (useMask){
 			dimensions = new double[0][0];
 		} else {
-			dimensions = dimensionsFromImages(fileNames,dir);
+			dimensions = dimensionsFromImages(fileNames,manifest);
+		}
+		if(dimensions == null){
+			return null;
 		}
 		
 		boolean loaded = true;
-		toploop:
 		for(int i = 0; i<fileNames.length; i++){
 			if(useMask){
-				String shortName = fileNames[i].split("\\.")[0];
-				for(int j = 0; j<maskFiles.length;j++){
-					if(maskFiles[j].startsWith(shortName)){
-						pcaImages.add(new SPDA_PS_Positional(dir+fileNames[i],IJ.openVirtual(dir+maskFiles[j]),splitMask));
-						continue toploop;
-					}
-					if(j==maskFiles.length-1){
-						loaded=false;
-						IJ.showMessage("No mask found.\nCould not find "+shortName+".tif or "+shortName+".tiff in "+dir);
-						break toploop;
-					}
+				SPDA_Manifest.Entry maskFile = manifest.find(fileNames[i], false);
+				if(maskFile == null){
+					loaded=false;
+					String shortName = SPDA_Manifest.baseName(fileNames[i]);
+					IJ.showMessage("No mask found.\nCould not find "+shortName+".tif or "+shortName+".tiff in "+dir);
+					break;
 				}
+				pcaImages.add(new SPDA_PS_Positional(dir+fileNames[i],IJ.openVirtual(dir+maskFile.name),splitMask));
 			} else {
 				pcaImages.add(new SPDA_PS_Positional(dir+fileNames[i],(int)Math.round(dimensions[i][1]),(int)Math.round(dimensions[i][2]),(int)Math.round(dimensions[i][3]),(int)Math.round(dimensions[i][4]),dimensions[i][0]));
 			}
 		}
 		if(loaded){
-			return coreProcess(pcaImages,series,covariance,sigma, kMeansMode, kGroups, kIter);
+			return coreProcess(pcaImages,series,covariance,sigma, kMeansMode, kGroups, kIter, options);
 		} else {
 			return null;
 		}
@@ -229,38 +292,79 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * 
 	 */
 	public static ArrayList<SPDA_Results> coreProcess(ArrayList<SPDA_PS_Image> pdaImages, boolean series,boolean covariance,double sigma, boolean kMeansMode, int kGroups, int kIter){
-		ArrayList<double[]> growList =  new ArrayList<double[]>();
+		return coreProcess(pdaImages, series, covariance, sigma, kMeansMode, kGroups, kIter, new SPDA_Options());
+	}
+	
+	/**
+	 * 
+	 * As coreProcess, with optional settings
+	 * 
+	 * @param options		Optional settings of the analysis
+	 * 
+	 */
+	public static ArrayList<SPDA_Results> coreProcess(ArrayList<SPDA_PS_Image> pdaImages, boolean series,boolean covariance,double sigma, boolean kMeansMode, int kGroups, int kIter, SPDA_Options options){
+		SPDA_Covariance statistics = null;
 		ArrayList<SPDA_Results> results = new ArrayList<SPDA_Results>();
 		
 		
 		//Make the kernel
 		float[] kernel = makeKernel(sigma);
+		for(int i = 0; i<pdaImages.size(); i++){
+			pdaImages.get(i).setBlurring(sigma, options);
+		}
+
+		if(options.model != null){
+			if(!kMeansMode){
+				return projectOntoModel(pdaImages, kernel, options.model, options);
+			}
+			IJ.log("Ignoring the PCA model: it is only used in PCA mode");
+		}
 
 		if(kMeansMode) {
+			if(!series){
+				return globalKMeans(pdaImages, kernel, kGroups, kIter, options);
+			}
 			for(int i = 0; i<pdaImages.size(); i++){
 				SPDA_PS_Image imp = pdaImages.get(i);
-				double[][] sampletable = imp.analyse(kernel);
+				SPDA_Sample_Table sampletable = imp.analyse(kernel);
 				int[] groups = imp.doKMeans(sampletable, kGroups, kIter);
-				ImagePlus kImp = imp.drawKMeansImage(imp.mask,groups);
-				results.add(new SPDA_Results(kImp));
+				ImagePlus kImp = imp.drawKMeansImage(sampletable,groups);
+				imp.releaseSamples();
+				deliver(results, new SPDA_Results(kImp), i, options);
 			}
 		} else {
 		
 			for(int i = 0; i<pdaImages.size(); i++){
 				if(series){
-					double[][] sampleTable = pdaImages.get(i).analyse(kernel);
-					SPDA_Results template = doPCA(sampleTable,covariance);
-					results.add(pdaImages.get(i).getPCAResults(template));
+					pdaImages.get(i).analyse(kernel);
+					SPDA_Results template = doPCA(pdaImages.get(i).fittingStatistics(),covariance,options.components);
+					template.model.channelNames = pdaImages.get(i).getChannelNames();
+					SPDA_Results result = pdaImages.get(i).getPCAResults(template);
+					pdaImages.get(i).releaseSamples();
+					deliver(results, result, i, options);
 				} else {
-					growList.addAll(Arrays.asList(pdaImages.get(i).analyse(kernel)));
+					//Phase one of the global batch: only the statistics of each image are kept
+					pdaImages.get(i).analyse(kernel);
+					SPDA_Covariance imageStatistics = pdaImages.get(i).fittingStatistics();
+					if(statistics == null) statistics = new SPDA_Covariance(imageStatistics.getChannels());
+					if(!Arrays.equals(pdaImages.get(i).getChannelNames(), pdaImages.get(0).getChannelNames())){
+						IJ.log("Warning: the colours of "+pdaImages.get(i).title+" are named differently from those of the first image");
+					}
+					statistics.merge(imageStatistics);
+					if(options.lowMemory) pdaImages.get(i).releaseSamples();
 				}
 			}
 			
 			if(!series){
-				double[][] sampleTable = toArray(growList);
-				SPDA_Results template = doPCA(sampleTable,covariance);
+				//Phase two: project each image onto the shared eigenvectors, sampling it again if its table was released. If there is a results
+				//handler, each image's results are handed on as they are made, so that they are not all held at once
+				SPDA_Results template = doPCA(statistics,covariance,options.components);
+				template.model.channelNames = pdaImages.get(0).getChannelNames();
 				for(int i = 0; i<pdaImages.size(); i++){
-					results.add(pdaImages.get(i).getPCAResults(template));
+					if(options.lowMemory) pdaImages.get(i).analyse(kernel);
+					SPDA_Results result = pdaImages.get(i).getPCAResults(template);
+					pdaImages.get(i).releaseSamples();
+					deliver(results, result, i, options);
 				}
 			}
 		}
@@ -270,6 +374,125 @@ public class SPDA_Pixelspace implements PlugIn{
 		return results;
 	}
 	
+	/**
+	 * Passes the results of one image to the results handler of the options, or adds them to the list if there is none
+	 */
+	private static void deliver(ArrayList<SPDA_Results> results, SPDA_Results result, int index, SPDA_Options options){
+		if(options.resultsHandler != null){
+			options.resultsHandler.handle(result, index);
+		} else {
+			results.add(result);
+		}
+	}
+	
+	/**
+	 * 
+	 * K-Means across a batch of images with one set of centroids, so that each group number means the same colour in every image. The 
+	 * centroids are fitted on the rows of each image chosen by the sampling options, gathered into one table. Each image gives at most 
+	 * sampleRows of these rows (a seeded random sample of them, as SAMPLE_RANDOM), so the 
+	 * table stays bounded even when every row is sampled. Each image's sample table is released once its fitting rows are taken. Every 
+	 * image is then sampled again and every row assigned to the centroids, one image per thread at a time, so no more sample tables are 
+	 * held than there are threads.
+	 * 
+	 * @return		The group image of each image
+	 */
+	private static ArrayList<SPDA_Results> globalKMeans(final ArrayList<SPDA_PS_Image> pdaImages, final float[] kernel, int kGroups, int kIter, SPDA_Options options){
+		ArrayList<SPDA_Results> results = new ArrayList<SPDA_Results>();
+		final ArrayList<SPDA_PS_Image> clustered = new ArrayList<SPDA_PS_Image>();
+		ArrayList<SPDA_Sample_Table> samples = new ArrayList<SPDA_Sample_Table>();
+		//Also keeps the whole fitting table within the largest array
+		int cap = (int) Math.max(1, Math.min(options.sampleRows, Integer.MAX_VALUE/Math.max(1, pdaImages.size())));
+		long total = 0;
+		for(int i = 0; i<pdaImages.size(); i++){
+			SPDA_PS_Image imp = pdaImages.get(i);
+			imp.analyse(kernel);
+			SPDA_Sample_Table sample = imp.fittingSample();
+			if(samples.size()>0 && sample.getChannels() != samples.get(0).getChannels()){
+				IJ.log("Skipping "+imp.title+": "+sample.getChannels()+" colours, but the first image has "+samples.get(0).getChannels());
+				imp.releaseSamples();
+				continue;
+			}
+			sample = SPDA_Sampling.cap(sample, cap, options.seed+i);
+			samples.add(sample);
+			total += sample.getRows();
+			clustered.add(imp);
+			imp.releaseSamples();
+		}
+		if(samples.isEmpty()) return results;
+		SPDA_Sample_Table fitting = new SPDA_Sample_Table(samples.get(0).getChannels(), 1, 1, (int) total);
+		for(int i = 0; i<samples.size(); i++){
+			fitting.addRows(samples.get(i));
+		}
+		samples = null;
+		
+		final SPDA_KMeans kMeans = new SPDA_KMeans(kGroups, kIter, options);
+		kMeans.fit(fitting);
+		fitting = null;
+		
+		//Each batch of images is assigned in parallel and its group images handed on before the next batch is sampled
+		int batch = SPDA_Parallel.threads(options.threads);
+		for(int start = 0; start<clustered.size(); start += batch){
+			final int first = start;
+			int end = Math.min(clustered.size(), start+batch);
+			final SPDA_Results[] groupImages = new SPDA_Results[end-start];
+			SPDA_Parallel.forRange(options.threads, start, end, 1, new SPDA_Parallel.Body(){
+				public void run(int from, int to){
+					for(int i = from; i<to; i++){
+						SPDA_PS_Image imp = clustered.get(i);
+						SPDA_Sample_Table table = imp.analyse(kernel);
+						int[] groups = kMeans.assign(table);
+						groupImages[i-first] = new SPDA_Results(imp.drawKMeansImage(table, groups));
+						imp.releaseSamples();
+					}
+				}
+			});
+			for(int i = start; i<end; i++){
+				deliver(results, groupImages[i-first], i, options);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * 
+	 * Projects each image onto a stored PCA model, without fitting a new one. Each image is only analysed and projected, so images 
+	 * can be compared against a reference cohort without processing the cohort again.
+	 * 
+	 * @param pdaImages		The images to project
+	 * @param sigma			Value of blurring sigma
+	 * @param model			The stored model, which must have the same number of colours as the images
+	 * @param options		Optional settings of the analysis
+	 * @return			The results of each image
+	 */
+	public static ArrayList<SPDA_Results> projectOntoModel(ArrayList<SPDA_PS_Image> pdaImages, double sigma, SPDA_PCA_Model model, SPDA_Options options){
+		for(int i = 0; i<pdaImages.size(); i++){
+			pdaImages.get(i).setBlurring(sigma, options);
+		}
+		return projectOntoModel(pdaImages, makeKernel(sigma), model, options);
+	}
+	
+	private static ArrayList<SPDA_Results> projectOntoModel(ArrayList<SPDA_PS_Image> pdaImages, float[] kernel, SPDA_PCA_Model model, SPDA_Options options){
+		ArrayList<SPDA_Results> results = new ArrayList<SPDA_Results>();
+		SPDA_Results template = model.toResults();
+		for(int i = 0; i<pdaImages.size(); i++){
+			SPDA_PS_Image imp = pdaImages.get(i);
+			if(imp.channels != model.getChannels()){
+				IJ.log("Skipping "+imp.title+": "+imp.channels+" colours, but the PCA model has "+model.getChannels());
+				continue;
+			}
+			String[] names = imp.getChannelNames();
+			if(model.isNamed() && !Arrays.equals(names, model.channelNames)){
+				IJ.log("Skipping "+imp.title+": colours "+Arrays.toString(names)+", but the PCA model has "+Arrays.toString(model.channelNames));
+				continue;
+			}
+			imp.analyse(kernel);
+			SPDA_Results result = imp.getPCAResults(template);
+			imp.releaseSamples();
+			deliver(results, result, i, options);
+		}
+		return results;
+	}
+	
 	/**
 	 * Converts the double[] list into a double[][] - simply using toArray and casting does not work for this.
 	 * 
@@ -287,36 +510,26 @@ public class SPDA_Pixelspace implements PlugIn{
 	/**
 	 *
 	 *	Get Dimensions from a directory of images. If using masks, user is forced to use this (because the mask must always
-	 *	match the image dimensions, and this saves them the most time).
+	 *	match the image dimensions, and this saves them the most time). The dimensions are read from the image headers by the manifest.
 	 *
 	 * @param fileNames
-	 * @param dir
+	 * @param manifest	Index of the template directory
 	 * @return
 	 */
 	
-	private static double[][] dimensionsFromImages(String[] fileNames,String dir){
-		String[] fileList = new File(dir).list();
+	private static double[][] dimensionsFromImages(String[] fileNames,SPDA_Manifest manifest){
 		double[][] dimensions = new double[fileNames.length][5];
-		toploop:
 		for(int i = 0; i<fileNames.length; i++){
-			String subName = fileNames[i].split("\\.")[0];
-			for(int j = 0; j<fileList.length; j++){
-				if(fileList[j].contains(subName) &&( fileList[j].endsWith(".tif") ||  fileList[j].endsWith(".tiff"))){
-					ImagePlus template = IJ.openVirtual(dir+fileList[j]);
-					Calibration calib = template.getLocalCalibration();
-					dimensions[i][0] = calib.pixelDepth/calib.pixelWidth;
-					dimensions[i][1] = template.getWidth();
-					dimensions[i][2] = template.getHeight();
-					dimensions[i][3] = template.getNSlices();
-					dimensions[i][4] = template.getNFrames();
-					template.close();
-					continue toploop;
-				}
-				if(j==fileList.length-1){
-					IJ.showMessage(fileNames[i]+" Template Image Not Found - Image should have the same title.");
-					return null;
-				}
+			SPDA_Manifest.Entry template = manifest.find(fileNames[i], true);
+			if(template == null){
+				IJ.showMessage(fileNames[i]+" Template Image Not Found - Image should have the same title.");
+				return null;
 			}
+			if(template.width == 0){
+				IJ.showMessage("Could not read template image "+template.name);
+				return null;
+			}
+			dimensions[i] = template.getDimensions();
 		}
 		return dimensions;
 	}
@@ -326,7 +539,9 @@ public class SPDA_Pixelspace implements PlugIn{
 	/**
 	 * 
 	 * Imports image dimensions from a user-specified file. This must be provided in the order filename, Z calibration difference, x,y,z,t.
-	 * Third column is assumed to be z if provided. Z and T are 1-indexed.
+	 * Third column is assumed to be z if provided. Z and T are 1-indexed. Rows are looked up by file name, or by the name up to the first '.';
+	 * a file matching neither is matched to the last row that it starts with, or that starts with it. Only the rows matched to a file are 
+	 * read as numbers; a matched row that cannot be read is logged with its line number and the file is left without dimensions.
 	 * 
 	 * @param fileNames
 	 * @param tablePath
@@ -338,49 +553,76 @@ public class SPDA_Pixelspace implements PlugIn{
 			BufferedReader reader = new BufferedReader(new FileReader(new File(tablePath)));
 			String line = reader.readLine();
 			int length = line.split("\t").length-1;
-			double[][] table = new double[numberFiles][length];
-			int lineCount = 0;
+			ArrayList<String[]> rows = new ArrayList<String[]>();
+			ArrayList<Integer> lineNumbers = new ArrayList<Integer>();
+			HashMap<String, Integer> byName = new HashMap<String, Integer>();
+			int lineNumber = 1;
 			while(true){
 				line = reader.readLine();
 				if(line == null) break;
+				lineNumber++;
+				if(line.trim().length() == 0) continue;
 				String[] lineParts = line.split("\t");
-				lineCount++;
-				String thisFile = lineParts[0].trim();
-				for(int i = 0; i<numberFiles; i++){
-					if(fileNames[i].equals(thisFile) || fileNames[i].startsWith(thisFile) || thisFile.startsWith(fileNames[i])){
-						double zDiff,x,y,z,t;
-						zDiff=Double.parseDouble(lineParts[1]);
-						x = Double.parseDouble(lineParts[2]);
-						y = Double.parseDouble(lineParts[3]);
-						if(length>4){
-							z = Double.parseDouble(lineParts[4]);
-							if(z == 0) z=1;
-						} else {
-							z = 1;
-						}
-						if(length>5){
-							t = Double.parseDouble(lineParts[5]);
-							if(t==0) t = 1;
-						} else {
-							t = 1;
-						}
-						table[i] = new double []{zDiff,x,y,z,t};
-					}
-				}
+				lineParts[0] = lineParts[0].trim();
+				byName.put(lineParts[0], rows.size());
+				rows.add(lineParts);
+				lineNumbers.add(lineNumber);
 			}
 			reader.close();
-			if(lineCount < numberFiles){
+			if(rows.size() < numberFiles){
 				IJ.showMessage("Insufficient Rows");
 				return null;
-			} else {
-				return table;
 			}
+			double[][] table = new double[numberFiles][length];
+			for(int i = 0; i<numberFiles; i++){
+				Integer row = byName.get(fileNames[i]);
+				if(row == null) row = byName.get(SPDA_Manifest.baseName(fileNames[i]));
+				if(row == null){
+					for(int j = 0; j<rows.size(); j++){
+						String rowName = rows.get(j)[0];
+						if(fileNames[i].startsWith(rowName) || rowName.startsWith(fileNames[i])) row = j;
+					}
+				}
+				if(row == null) continue;
+				try{
+					table[i] = dimensionsFromRow(rows.get(row), length);
+				} catch (RuntimeException e){
+					IJ.log("Skipping line "+lineNumbers.get(row)+" of "+tablePath+" for "+fileNames[i]+": "+e);
+				}
+			}
+			return table;
 		} catch (Exception e){
 			IJ.showMessage("Error Reading Dimensions Table");
 			return null;
 		}
 	}
 	
+	/**
+	 * Reads the dimensions of one row of a dimensions table (see dimensionsFromTable)
+	 * 
+	 * @throws NumberFormatException	If a value is not a number
+	 * @throws ArrayIndexOutOfBoundsException	If the row is missing values
+	 */
+	private static double[] dimensionsFromRow(String[] lineParts, int length){
+		double zDiff,x,y,z,t;
+		zDiff=Double.parseDouble(lineParts[1]);
+		x = Double.parseDouble(lineParts[2]);
+		y = Double.parseDouble(lineParts[3]);
+		if(length>4){
+			z = Double.parseDouble(lineParts[4]);
+			if(z == 0) z=1;
+		} else {
+			z = 1;
+		}
+		if(length>5){
+			t = Double.parseDouble(lineParts[5]);
+			if(t==0) t = 1;
+		} else {
+			t = 1;
+		}
+		return new double []{zDiff,x,y,z,t};
+	}
+	
 	
 	
 	/**
@@ -393,130 +635,168 @@ public class SPDA_Pixelspace implements PlugIn{
 	
 	public static void saveResults(ArrayList<SPDA_Results> results, String dir, boolean series){
 		for(int i = 0; i<results.size(); i++){
-			SPDA_Results result = results.get(i);
-			String title = result.pdaImp.getTitle();
+			saveResult(results.get(i), i, dir, series);
+		}
+	}
+	
+	/**
+	 * Saves the results of one image of a batch (see saveResults)
+	 * 
+	 * @param result	Results of the image
+	 * @param index		Position of the image in the batch - in global mode, the shared tables are saved with the first image
+	 * @param dir		Target Directory Path
+	 * @param series	True if each image has its own eigenvector and weightings tables
+	 */
+	public static void saveResult(SPDA_Results result, int index, String dir, boolean series){
+		String title = result.pdaImp.getTitle();
+		if(result.eigenVectorTable != null){
 			if(series){
 				result.eigenVectorTable.save(dir+title+" EigenVector Table");
 				result.weightingsTable.save(dir+title+" Matrix");
-			} else if (i==0){
+			} else if (index==0){
 				result.eigenVectorTable.save(dir+"EigenVector Table");
 				result.weightingsTable.save(dir+"Matrix");
 			}
-			IJ.saveAsTiff(result.pdaImp,dir+title+"-pcaresult");
-			result.results.save(dir+title+" PCA Results");
+		}
+		IJ.saveAsTiff(result.pdaImp,dir+title+"-pcaresult");
+		if(result.results != null) result.results.save(dir+title+" PCA Results");
+	}
+	
+	/**
+	 * Creates a results handler (see SPDA_Options.resultsHandler) that saves the results of each image as soon as they are made, so that
+	 * only one image's results are held at a time. Only the PCA model of each image is kept, so that it can be saved with saveModels.
+	 * 
+	 * @param kept		List to which the model of each image is added
+	 * @param dir		Target Directory Path
+	 * @param series	True if series, false if global
+	 * @return		The handler
+	 */
+	public static SPDA_Options.ResultsHandler savingHandler(final ArrayList<SPDA_Results> kept, final String dir, final boolean series){
+		return new SPDA_Options.ResultsHandler(){
+			public void handle(SPDA_Results result, int index){
+				saveResult(result, index, dir, series);
+				SPDA_Results model = new SPDA_Results();
+				model.model = result.model;
+				kept.add(model);
+			}
+		};
+	}
+	
+	/**
+	 * Saves the fitted PCA models of a set of results. If the results have different models (series mode), the number of each is added 
+	 * to the file name.
+	 * 
+	 * @param results	The results of the analysis
+	 * @param path		Path of the model file
+	 */
+	public static void saveModels(ArrayList<SPDA_Results> results, String path){
+		try{
+			for(int i = 0; i<results.size(); i++){
+				SPDA_PCA_Model model = results.get(i).model;
+				if(model == null || (i>0 && model == results.get(0).model)) continue;
+				String modelPath = path;
+				if(results.size()>1 && results.get(results.size()-1).model != results.get(0).model){
+					int dot = path.lastIndexOf('.');
+					if(dot<=path.lastIndexOf(File.separatorChar)) dot = path.length();
+					modelPath = path.substring(0, dot)+"-"+(i+1)+path.substring(dot);
+				}
+				model.save(modelPath);
+			}
+		} catch (IOException e){
+			IJ.error("Could not save PCA model: "+e.getMessage());
 		}
 	}
 	
 	public static SPDA_Results doPCA(double[][] table, boolean covar){
+		return doPCA(SPDA_Sample_Table.fromArray(table), covar);
+	}
+	
+	public static SPDA_Results doPCA(SPDA_Sample_Table table, boolean covar){
+		return doPCA(SPDA_Covariance.of(table, 1), covar);
+	}
+	
+	/**
+	 * Runs the PCA from the running statistics of the sample table (or of several tables merged together), so the rows themselves are not needed
+	 * 
+	 * @param statistics	The means and co-moments of the colours
+	 * @param covar		If true, use the covariance matrix. If false, use the correlation matrix.
+	 * @return		The PCA results
+	 */
+	public static SPDA_Results doPCA(SPDA_Covariance statistics, boolean covar){
+		return doPCA(statistics, covar, 0);
+	}
+	
+	/**
+	 * As doPCA, finding only the first components. With many colours this is much faster than finding them all, and the projection 
+	 * and results tables only hold the components found.
+	 * 
+	 * @param components	Number of components to find, or 0 for all
+	 */
+	public static SPDA_Results doPCA(SPDA_Covariance statistics, boolean covar, int components){
 		SPDA_Results results = new SPDA_Results();
-		int rows = table.length;
-		int columns = table[0].length;
-		
-		//Calculate means for each channel
-		double[] means = new double[columns];
-		for(int i = 0; i<rows;i++){
-			for(int c = 0; c<columns;c++){
-				means[c]+= table[i][c];
+		int columns = statistics.getChannels();
+
+		//Calculate the upper triangle of the matrix, and mirror it
+		double[][] values = new double[columns][columns];
+		for(int y = 0; y<columns;y++){
+			for(int x=y; x<columns;x++){
+				values[x][y] = covar ? statistics.covariance(x,y) : statistics.correlation(x,y);
+				values[y][x] = values[x][y];
 			}
 		}
-		for(int c = 0; c<columns;c++){
-			means[c]= means[c]/rows;
-		}
-
-		//Calculate  matrix
-		Matrix matrix = new Matrix(columns,columns);
 
 		ResultsTable matrixLog = new ResultsTable();
-
-		//Calculate covariance for each pair
-		if(covar){
-			
-			for(int y = 0; y<columns;y++){
-				IJ.showStatus("Calculating Covariance "+SPDA_Pixelspace.NF.format((double)y/columns*100)+"%");
-				matrixLog.incrementCounter();
-				for(int x=0; x<columns;x++){
-					double sum = 0.0;
-					for(int i = 0; i<rows;i++){
-						sum += ((table[i][x]-means[x])*(table[i][y]-means[y]));
-					}
-					double covariance = sum/(rows-1);
-					matrix.set(x,y,covariance);
-					matrixLog.addValue("C"+x,covariance);
-					if(Double.isNaN(covariance)){
-						IJ.showMessage("Failure to calculate Covariance Matrix");
-						matrixLog.show("Correlation Matrix");
-						return null;
-					}
-				}
-			}
-			matrixLog.show("Covariance Matrix");
-		} else { // calculate correlation
-			for(int y = 0; y<columns;y++){
-				IJ.showStatus("Calculating Correlation "+SPDA_Pixelspace.NF.format((double)y/columns*100)+"%");
-				matrixLog.incrementCounter();
-				for(int x=0; x<columns;x++){
-					double sumAA = 0.0;
-					double sumBB = 0.0;
-					double sumAB = 0.0;
-					for(int i = 0; i<rows;i++){
-						sumAB += ((table[i][x]-means[x])*(table[i][y]-means[y]));
-						sumAA += ((table[i][x]-means[x])*(table[i][x]-means[x]));
-						sumBB += ((table[i][y]-means[y])*(table[i][y]-means[y]));
-					}
-					double correlation = sumAB/Math.sqrt(sumAA*sumBB);
-					
-					matrix.set(x,y,correlation);
-					
-					matrixLog.addValue("C"+x,correlation);
-					if(Double.isNaN(correlation)){
-						IJ.showMessage("Failure to calculate Correlation Matrix");
-						matrixLog.show("Correlation Matrix");
-						return null;
-					}
+		String name = covar ? "Covariance" : "Correlation";
+		for(int y = 0; y<columns;y++){
+			matrixLog.incrementCounter();
+			for(int x=0; x<columns;x++){
+				double value = values[x][y];
+				matrixLog.addValue("C"+x,value);
+				if(Double.isNaN(value)){
+					IJ.showMessage("Failure to calculate "+name+" Matrix");
+					matrixLog.show("Correlation Matrix");
+					return null;
 				}
 			}
-			matrixLog.show("Correlation Matrix");
 		}
+		matrixLog.show(name+" Matrix");
 		IJ.showStatus("Computing Eigenvectors");
-		//Compute eigenvectors
-		EigenvalueDecomposition eigen = matrix.eig();
-		
-		double[] eigenVal = eigen.getRealEigenvalues();
-		double[][] eigenVec = eigen.getV().getArray();
+		SPDA_Eigen eigen = SPDA_Eigen.of(values, components);
+		double[] eigenVal = eigen.values;
+		double[][] eigenVec = eigen.vectors;
 
-		//Sort by eigenvalue
-		//Get order of eigenvalues
-		IJ.showStatus("Sorting");
-		int[] pos = new int[eigenVal.length];
-		for(int i = 0; i<eigenVal.length; i++){
-			pos[i] = 0;
-			for(int j = 0; j<eigenVal.length; j++){
-				if(eigenVal[i]<eigenVal[j]){
-					pos[i]++;
-				}
+		//The total variation is the sum of all the eigenvalues, which is the trace of the matrix if only some were found
+		double total = 0.0;
+		if(eigenVal.length<columns){
+			for(int i = 0; i<columns; i++){
+				total += values[i][i];
 			}
-		}
-		//sort eigenvalue array
-		double[] tempEig = new double[eigenVal.length];
-		for(int i = 0; i<tempEig.length;i++){
-			tempEig[i]=eigenVal[pos[i]];
-		}
-		eigenVal = tempEig;
-
-		//sort eigenVector array
-		double[][] tempEigVec = new double[eigenVec.length][eigenVec[0].length];
-		for(int i = 0; i<tempEigVec.length;i++){
-			for(int j=0;j<tempEigVec[0].length;j++){
-				tempEigVec[i][j]=eigenVec[i][pos[j]];
+		} else {
+			for(int i = 0; i<eigenVal.length; i++){
+				total += eigenVal[i];
 			}
 		}
-		eigenVec = tempEigVec;
 		
+		results.eigenVec = eigenVec;
+		results.eigenVectorTable = eigenTable(eigenVal, eigenVec, total);
+		results.weightingsTable = matrixLog;
+		results.model = new SPDA_PCA_Model(statistics, covar, eigenVal, eigenVec, total);
+
+		return results;
+	}
+	
+	/**
+	 * Creates the table of sorted eigenvalues and eigenvectors, with the cumulative variation accounted for by each
+	 * 
+	 * @param eigenVal	Sorted eigenvalues
+	 * @param eigenVec	Eigenvectors, arranged colour/component
+	 * @param total		Sum of all the eigenvalues, including any that were not found
+	 * @return		The eigenvector table
+	 */
+	static ResultsTable eigenTable(double[] eigenVal, double[][] eigenVec, double total){
 		ResultsTable eigenTable = new ResultsTable();
 		eigenTable.incrementCounter();
-		double total = 0.0;
 		for(int i = 0; i<eigenVal.length;i++){
-			total += eigenVal[i];
 			eigenTable.addValue("EigenVec"+(i+1),eigenVal[i]);
 		}
 		eigenTable.addLabel("Eigenvalue");
@@ -535,11 +815,7 @@ public class SPDA_Pixelspace implements PlugIn{
 		}
 		eigenTable.addLabel("Cum. Var. %");
 		
-		results.eigenVec = eigenVec;
-		results.eigenVectorTable = eigenTable;
-		results.weightingsTable = matrixLog;
-
-		return results;
+		return eigenTable;
 	}
 	
 	/**
@@ -550,16 +826,34 @@ public class SPDA_Pixelspace implements PlugIn{
 	 * 
 	 * 
 	 * mode=K-Means / PCA
-	 * seriesmode=Single / Series
+	 * seriesmode=Single / Series / Global (Series and Global analyse every image of the filepath directory)
 	 * input=Positional / Thresholded
 	 * pcamode=Correlation / Covariance
 	 * mask=No Mask / Segregating / Annotative
 	 * sigma=[sigma]
-	 * filepath=(if not single positional) [path to directory or single file]
+	 * filepath=[path to directory, or the positional file if single positional - results are saved next to it]
 	 * dimensions=(if not positional) Manual / Table / From Images
 	 * tablepath=(if using table) [table path]
 	 * kgroups=[k groups]
 	 * kiterations=[k iterations]
+	 * 		(in a global batch, k-means fits one set of centroids to every image, so group numbers can be compared between images)
+	 * blur=Convolution / Recursive / Splat (positional input only)
+	 * threads=[number of threads, 0 for all processors]
+	 * sampling=All / Grid / Random / Stratified (rows used to fit the PCA or k-means)
+	 * step=[grid spacing in X and Y]
+	 * zstep=[grid spacing in Z]
+	 * rows=[rows of each image for random or stratified sampling, and the most rows of each image fitted by a global k-means]
+	 * seed=[random seed]
+	 * lowmemory=True / False (global PCA batch: sample each image twice rather than keeping every sample table)
+	 * kmethod=Lloyd / Hamerly / Mini-batch (Hamerly skips rows that cannot change group, giving the same clustering faster for large k;
+	 * 		mini-batch trains on random batches of rows, taking kiterations batches, then assigns every row once)
+	 * batchrows=[rows in each mini-batch]
+	 * kinit=Random / K-Means++ (how the starting centroids are picked)
+	 * klog=True / False (log the progress and centroids of k-means)
+	 * model=[path to a saved PCA model to project onto, rather than fitting the PCA]
+	 * components=[number of principal components to find and project onto, 0 for all]
+	 * imagecomponents=[number of principal components drawn in the output image, 0 for all - default 3]
+	 * savemodel=[path to save the fitted PCA model to - in series mode, the number of each image is added]
 	 * 
 	 */
 	
@@ -581,6 +875,8 @@ public class SPDA_Pixelspace implements PlugIn{
 			boolean tableInput = false;
 			int kGroups = 1;
 			int kIter = 100;
+			SPDA_Options options = new SPDA_Options();
+			String modelPath = "";
 			
 			
 			//Split, sanitise  and interpret tokens
@@ -595,8 +891,11 @@ public class SPDA_Pixelspace implements PlugIn{
 					}
 				} else if(key.equals("seriesmode")) {
 					if(var.equals("series")) {
+						seriesMode= true;
+						singleMode = false;
+					} else if(var.equals("global")) {
 						seriesMode= false;
-						singleMode = true;
+						singleMode = false;
 					}
 				} else if(key.equals("input")) {
 					if(var.equals("positional")) {
@@ -630,9 +929,66 @@ public class SPDA_Pixelspace implements PlugIn{
 					kGroups = Integer.parseInt(var);
 				}else if (key.equals("kiterations")) {
 					kIter = Integer.parseInt(var);
+				}else if (key.equals("blur")) {
+					if(var.equals("recursive")) {
+						options.blurMode = BLUR_RECURSIVE;
+					} else if(var.equals("splat")) {
+						options.blurMode = BLUR_SPLAT;
+					}
+				}else if (key.equals("threads")) {
+					options.threads = Integer.parseInt(var);
+				}else if (key.equals("sampling")) {
+					if(var.equals("grid")) {
+						options.sampling = SAMPLE_GRID;
+					} else if(var.equals("random")) {
+						options.sampling = SAMPLE_RANDOM;
+					} else if(var.equals("stratified")) {
+						options.sampling = SAMPLE_STRATIFIED;
+					}
+				}else if (key.equals("step")) {
+					options.gridStep = Integer.parseInt(var);
+				}else if (key.equals("zstep")) {
+					options.gridStepZ = Integer.parseInt(var);
+				}else if (key.equals("rows")) {
+					options.sampleRows = Integer.parseInt(var);
+				}else if (key.equals("seed")) {
+					options.seed = Long.parseLong(var);
+				}else if (key.equals("lowmemory")) {
+					options.lowMemory = var.equals("true");
+				}else if (key.equals("kmethod")) {
+					if(var.equals("hamerly")) {
+						options.kMeansMethod = KMEANS_HAMERLY;
+					} else if(var.equals("mini-batch") || var.equals("minibatch")) {
+						options.kMeansMethod = KMEANS_MINIBATCH;
+					}
+				}else if (key.equals("batchrows")) {
+					options.miniBatchRows = Integer.parseInt(var);
+				}else if (key.equals("kinit")) {
+					if(var.equals("k-means++") || var.equals("kmeans++")) {
+						options.kMeansInit = KMEANS_INIT_PLUSPLUS;
+					}
+				}else if (key.equals("klog")) {
+					options.kMeansLog = var.equals("true");
+				}else if (key.equals("model")) {
+					String path = tokens[i].split("=")[1].trim();
+					try{
+						options.model = SPDA_PCA_Model.load(path);
+					} catch (IOException e){
+						IJ.error("Could not load PCA model: "+e.getMessage());
+						return;
+					}
+				}else if (key.equals("components")) {
+					options.components = Integer.parseInt(var);
+				}else if (key.equals("imagecomponents")) {
+					options.imageComponents = Integer.parseInt(var);
+				}else if (key.equals("savemodel")) {
+					modelPath = tokens[i].split("=")[1].trim();
 				}
 			}
 			ArrayList<SPDA_Results> results = new ArrayList<SPDA_Results>();
+			ArrayList<SPDA_Results> saved = new ArrayList<SPDA_Results>();
+			//The current image's results are shown rather than saved
+			String saveDir = null;
 			
 			
 			
@@ -640,23 +996,32 @@ public class SPDA_Pixelspace implements PlugIn{
 			
 			if(singleMode){
 				if(positional){
-					String dir = new File(filePath).getParentFile().getName();
-					results = SPDA_Pixelspace.processPositional(dir, new String[]{filePath}, tablePath, manualInput, tableInput, true, useMask,  splitMask,  covariance,  sigma, kMeansMode, kGroups,kIter);
+					File file = new File(filePath).getAbsoluteFile();
+					saveDir = file.getParent()+File.separator;
+					results = SPDA_Pixelspace.processPositional(saveDir, new String[]{file.getName()}, tablePath, manualInput, tableInput, true, useMask,  splitMask,  covariance,  sigma, kMeansMode, kGroups,kIter,options);
 					
 				} else {
-					SPDA_Pixelspace.processCurrentImage(useMask,splitMask,covariance,sigma, kMeansMode, kGroups,kIter);
+					results = SPDA_Pixelspace.processCurrentImage(useMask,splitMask,covariance,sigma, kMeansMode, kGroups,kIter,options);
 				}
 			} else {
-				
+					if(!filePath.endsWith(File.separator)) filePath += File.separator;
+					saveDir = filePath;
+					//In low memory mode each image's results are saved as soon as they are made, rather than all being held until the end
+					if(options.lowMemory){
+						options.resultsHandler = savingHandler(saved, filePath, seriesMode);
+					}
 					if(positional){
-						results = SPDA_Pixelspace.processPositionalDirectory(filePath,  tablePath, manualInput, tableInput, seriesMode,  useMask,  splitMask,  covariance,  sigma, kMeansMode, kGroups,kIter);
+						results = SPDA_Pixelspace.processPositionalDirectory(filePath,  tablePath, manualInput, tableInput, seriesMode,  useMask,  splitMask,  covariance,  sigma, kMeansMode, kGroups,kIter,options);
 					} else {
-						results = SPDA_Pixelspace.processThresholdedDirectory( filePath, seriesMode,  useMask,  splitMask,  covariance,  sigma, kMeansMode, kGroups,kIter);
+						results = SPDA_Pixelspace.processThresholdedDirectory( filePath, seriesMode,  useMask,  splitMask,  covariance,  sigma, kMeansMode, kGroups,kIter,options);
 					}
 			}
 			
-			if(results.size()>0){
-				SPDA_Pixelspace.saveResults(results, filePath, seriesMode);
+			if(results.size()>0 && saveDir != null){
+				SPDA_Pixelspace.saveResults(results, saveDir, seriesMode);
+			}
+			if(modelPath.length()>0 && !kMeansMode){
+				saveModels(options.resultsHandler != null ? saved : results, modelPath);
 			}
 		}
 		
@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
+import javax.swing.JCheckBox;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -29,10 +30,12 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 	private JRadioButton 	thresholdButton, positionalButton, 
 							manualButton, fromImageButton, fromTableButton, 
 							singleButton, globalButton, seriesButton, 
-							noMaskButton, annotativeButton, segregatingButton, pcaButton, kMeansButton;
+							noMaskButton, annotativeButton, segregatingButton, pcaButton, kMeansButton,
+							lloydButton, hamerlyButton, miniBatchButton;
 	private JPanel dataInputPanel, dimensionsPanel, operationsPanel, maskPanel, kMeansPanel, sigmaPanel, analysisModePanel;
-	private ButtonGroup inputGroup, dimensionsGroup, operationGroup, maskGroup, analysisModeGroup;
+	private ButtonGroup inputGroup, dimensionsGroup, operationGroup, maskGroup, analysisModeGroup, kMethodGroup;
 	private JButton runButton;
+	private JCheckBox plusPlusBox, lowMemoryBox;
 	private JTextField sigmaField, kField, iterField;
 	private JLabel kLabel, iterLabel;
 	
@@ -117,6 +120,12 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 		operationsPanel.add(globalButton);
 		operationsPanel.add(seriesButton);
 		
+		//Batches only: save each image's results as they are made
+		lowMemoryBox = new JCheckBox("Low memory");
+		lowMemoryBox.setEnabled(false);
+		operationsPanel.add(lowMemoryBox);
+		singleButton.addItemListener(this);
+		
 		operationsPanel.setBorder(BorderFactory.createTitledBorder("Batch Mode"));
 		
 		// Mask Mode
@@ -150,10 +159,24 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 		kLabel = new JLabel("k:");
 		iterLabel  = new JLabel("'Max. Iterations:");
 		
+		//Method: Lloyd measures every row each iteration, Hamerly skips rows that cannot change group, mini-batch trains on random batches
+		kMethodGroup = new ButtonGroup();
+		lloydButton = new JRadioButton("Lloyd",true);
+		hamerlyButton = new JRadioButton("Hamerly (faster for large k)");
+		miniBatchButton = new JRadioButton("Mini-batch (iterations are batches)");
+		kMethodGroup.add(lloydButton);
+		kMethodGroup.add(hamerlyButton);
+		kMethodGroup.add(miniBatchButton);
+		plusPlusBox = new JCheckBox("k-means++ starting centroids");
+		
 		kMeansPanel.add(kLabel);
 		kMeansPanel.add(kField);
 		kMeansPanel.add(iterLabel);
 		kMeansPanel.add(iterField);
+		kMeansPanel.add(lloydButton);
+		kMeansPanel.add(hamerlyButton);
+		kMeansPanel.add(miniBatchButton);
+		kMeansPanel.add(plusPlusBox);
 		
 		//Starts Disabled
 		kMeansPanel.setEnabled(false);
@@ -161,6 +184,10 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 		iterLabel.setEnabled(false);
 		kField.setEnabled(false);
 		iterField.setEnabled(false);
+		lloydButton.setEnabled(false);
+		hamerlyButton.setEnabled(false);
+		miniBatchButton.setEnabled(false);
+		plusPlusBox.setEnabled(false);
 		
 		
 
@@ -203,10 +230,20 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 			String tablePath="", filePath="";
 			int kGroups = 0;
 			int kIter = 100;
+			SPDA_Options options = new SPDA_Options();
+			options.lowMemory = !singleButton.isSelected() && lowMemoryBox.isSelected();
 			boolean kmeansMode = kMeansButton.isSelected();
 			if(kmeansMode) {
 				kGroups =Integer.parseInt(kField.getText());
 				kIter =Integer.parseInt(iterField.getText());
+				if(hamerlyButton.isSelected()){
+					options.kMeansMethod = SPDA_Pixelspace.KMEANS_HAMERLY;
+				} else if(miniBatchButton.isSelected()){
+					options.kMeansMethod = SPDA_Pixelspace.KMEANS_MINIBATCH;
+				}
+				if(plusPlusBox.isSelected()){
+					options.kMeansInit = SPDA_Pixelspace.KMEANS_INIT_PLUSPLUS;
+				}
 			}
 			double sigma = Double.parseDouble(sigmaField.getText());
 			boolean useMask = false, splitMask = false;
@@ -253,10 +290,10 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 					OpenDialog od = new OpenDialog("Select Positional File");
 					if(od.getPath()!=null){
 						filePath = od.getDirectory();
-						results = SPDA_Pixelspace.processPositional(filePath, new String[]{od.getFileName()}, tablePath, manualInput, tableInput, true, useMask,  splitMask,  covariance,  sigma, kmeansMode, kGroups, kIter);
+						results = SPDA_Pixelspace.processPositional(filePath, new String[]{od.getFileName()}, tablePath, manualInput, tableInput, true, useMask,  splitMask,  covariance,  sigma, kmeansMode, kGroups, kIter, options);
 					}
 				} else {
-					SPDA_Pixelspace.processCurrentImage(useMask,splitMask,covariance,sigma, kmeansMode, kGroups, kIter);
+					SPDA_Pixelspace.processCurrentImage(useMask,splitMask,covariance,sigma, kmeansMode, kGroups, kIter, options);
 				}
 			} else {
 				if(positional){
@@ -267,10 +304,14 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 				DirectoryChooser dc = new DirectoryChooser("Select Working Directory");
 				if(dc.getDirectory()!=null){
 					filePath = dc.getDirectory();
+					//In low memory mode each image's results are saved as soon as they are made, rather than all being held until the end
+					if(options.lowMemory){
+						options.resultsHandler = SPDA_Pixelspace.savingHandler(new ArrayList<SPDA_Results>(), filePath, seriesMode);
+					}
 					if(positional){
-						results = SPDA_Pixelspace.processPositionalDirectory(filePath,  tablePath,manualInput, tableInput, seriesMode,  useMask,  splitMask,  covariance,  sigma, kmeansMode, kGroups, kIter);
+						results = SPDA_Pixelspace.processPositionalDirectory(filePath,  tablePath,manualInput, tableInput, seriesMode,  useMask,  splitMask,  covariance,  sigma, kmeansMode, kGroups, kIter, options);
 					} else {
-						results = SPDA_Pixelspace.processThresholdedDirectory(filePath, seriesMode,  useMask,  splitMask,  covariance,  sigma, kmeansMode, kGroups, kIter);
+						results = SPDA_Pixelspace.processThresholdedDirectory(filePath, seriesMode,  useMask,  splitMask,  covariance,  sigma, kmeansMode, kGroups, kIter, options);
 					}
 				}
 				
@@ -287,7 +328,8 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 	
 	/**
 	 * 
-	 * Implements the dimensions panel phasing in and out based on selection of thresholded mode.
+	 * Implements the dimensions panel phasing in and out based on selection of thresholded mode, and the k-means and low memory options 
+	 * phasing in and out with their modes.
 	 * 
 	 */
 	public void itemStateChanged(ItemEvent e){
@@ -308,12 +350,21 @@ public class SPDA_Pixelspace_Dialog extends JFrame implements ActionListener, It
 			iterLabel.setEnabled(false);
 			kField.setEnabled(false);
 			iterField.setEnabled(false);
+			lloydButton.setEnabled(false);
+			hamerlyButton.setEnabled(false);
+			miniBatchButton.setEnabled(false);
+			plusPlusBox.setEnabled(false);
 		} else {
 			kMeansPanel.setEnabled(true);
 			kLabel.setEnabled(true);
 			iterLabel.setEnabled(true);
 			kField.setEnabled(true);
 			iterField.setEnabled(true);
+			lloydButton.setEnabled(true);
+			hamerlyButton.setEnabled(true);
+			miniBatchButton.setEnabled(true);
+			plusPlusBox.setEnabled(true);
 		}
+		lowMemoryBox.setEnabled(!singleButton.isSelected());
 	}
 }
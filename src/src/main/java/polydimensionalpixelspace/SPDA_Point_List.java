@@ -0,0 +1,153 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.util.Arrays;
+
+/**
+ *
+ * A compact list of marked points, held as one primitive array per coordinate rather than one object per point. Coordinates are 0-indexed.
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_Point_List {
+	private int[] x, y, z, t, c;
+	private int size;
+
+	public SPDA_Point_List(){
+		this(1024);
+	}
+
+	public SPDA_Point_List(int capacity){
+		capacity = Math.max(1, capacity);
+		x = new int[capacity];
+		y = new int[capacity];
+		z = new int[capacity];
+		t = new int[capacity];
+		c = new int[capacity];
+	}
+
+	/**
+	 * Adds a point to the list
+	 *
+	 * @param channel	The channel (i.e. cell type) of the point
+	 */
+	public void add(int px, int py, int pz, int pt, int channel){
+		if(size == x.length){
+			int capacity = size+(size>>1)+1;
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			z = Arrays.copyOf(z, capacity);
+			t = Arrays.copyOf(t, capacity);
+			c = Arrays.copyOf(c, capacity);
+		}
+		x[size] = px;
+		y[size] = py;
+		z[size] = pz;
+		t[size] = pt;
+		c[size] = channel;
+		size++;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public int getX(int i){
+		return x[i];
+	}
+
+	public int getY(int i){
+		return y[i];
+	}
+
+	public int getZ(int i){
+		return z[i];
+	}
+
+	public int getT(int i){
+		return t[i];
+	}
+
+	public int getChannel(int i){
+		return c[i];
+	}
+
+	/**
+	 * Sorts the points by channel, frame, slice, X then Y, and removes any duplicates. This is the order in which points were read from the
+	 * original per-channel boolean maps.
+	 */
+	public void sortUnique(int width, int height, int slices, int frames){
+		long[] keys = new long[size];
+		for(int i = 0; i<size; i++){
+			keys[i] = (((((long) c[i]*frames+t[i])*slices+z[i])*width+x[i])*height)+y[i];
+		}
+		Arrays.sort(keys);
+		int unique = 0;
+		for(int i = 0; i<keys.length; i++){
+			if(i>0 && keys[i] == keys[i-1]) continue;
+			long key = keys[i];
+			y[unique] = (int) (key%height);
+			key /= height;
+			x[unique] = (int) (key%width);
+			key /= width;
+			z[unique] = (int) (key%slices);
+			key /= slices;
+			t[unique] = (int) (key%frames);
+			c[unique] = (int) (key/frames);
+			unique++;
+		}
+		size = unique;
+	}
+
+	/**
+	 * Renumbers the channels so that those with no points are removed (which may occur if positional file channels are not sequential),
+	 * keeping their order
+	 *
+	 * @return		The original number of each channel left
+	 */
+	public int[] compactChannels(){
+		int max = -1;
+		for(int i = 0; i<size; i++){
+			max = Math.max(max, c[i]);
+		}
+		int[] renumber = new int[max+1];
+		for(int i = 0; i<size; i++){
+			renumber[c[i]] = 1;
+		}
+		int channels = 0;
+		for(int channel = 0; channel<renumber.length; channel++){
+			renumber[channel] = renumber[channel] == 1 ? channels++ : -1;
+		}
+		for(int i = 0; i<size; i++){
+			c[i] = renumber[c[i]];
+		}
+		int[] original = new int[channels];
+		for(int channel = 0; channel<renumber.length; channel++){
+			if(renumber[channel]>=0) original[renumber[channel]] = channel;
+		}
+		return original;
+	}
+
+	/**
+	 * Groups the points by the plane they lie in, keeping the order of the list within each plane
+	 *
+	 * @return		The indices of the points in each plane, arranged frame*slices+slice
+	 */
+	public int[][] byPlane(int slices, int frames){
+		int[] counts = new int[slices*frames];
+		for(int i = 0; i<size; i++){
+			counts[t[i]*slices+z[i]]++;
+		}
+		int[][] planes = new int[slices*frames][];
+		for(int p = 0; p<planes.length; p++){
+			planes[p] = new int[counts[p]];
+			counts[p] = 0;
+		}
+		for(int i = 0; i<size; i++){
+			int p = t[i]*slices+z[i];
+			planes[p][counts[p]++] = i;
+		}
+		return planes;
+	}
+}
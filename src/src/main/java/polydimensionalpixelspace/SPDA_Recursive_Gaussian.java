@@ -0,0 +1,133 @@
+package src.main.java.polydimensionalpixelspace;
+
+/**
+ * <p>Implements the recursive approximation of the gaussian described by Young and van Vliet (Signal Processing 44, 1995): a third order
+ * causal filter followed by the same filter run anti-causally. The cost per pixel is fixed, regardless of sigma.</p>
+ *
+ * <p>The filter starts from zero at each end of a line, so pixels beyond the edge of the image count as empty. This matches the truncation
+ * of the kernel at the edges in SPDA_PS_Image.blurWithMask.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+class SPDA_Recursive_Gaussian {
+	/**
+	 * The coefficients are only valid above this sigma
+	 */
+	public static final double MIN_SIGMA = 0.5;
+
+	private final double b, a1, a2, a3;
+
+	/**
+	 * Calculates the filter coefficients
+	 *
+	 * @param sigma		Sigma of the gaussian, in pixels. Must be at least MIN_SIGMA.
+	 */
+	SPDA_Recursive_Gaussian(double sigma){
+		double q;
+		if(sigma>=2.5){
+			q = 0.98711*sigma - 0.96330;
+		} else {
+			q = 3.97156 - 4.14554*Math.sqrt(1.0 - 0.26891*sigma);
+		}
+		double q2 = q*q;
+		double q3 = q2*q;
+		double b0 = 1.57825 + 2.44413*q + 1.4281*q2 + 0.422205*q3;
+		double b1 = 2.44413*q + 2.85619*q2 + 1.26661*q3;
+		double b2 = -(1.4281*q2 + 1.26661*q3);
+		double b3 = 0.422205*q3;
+		a1 = b1/b0;
+		a2 = b2/b0;
+		a3 = b3/b0;
+		b = 1.0 - (a1+a2+a3);
+	}
+
+	/**
+	 * Filters a single line of values in place.
+	 *
+	 * @param data		Array holding the line
+	 * @param offset	Index of the first value of the line
+	 * @param stride	Distance between successive values of the line
+	 * @param length	Number of values in the line
+	 */
+	void filterLine(float[] data, int offset, int stride, int length){
+		double w1 = 0.0, w2 = 0.0, w3 = 0.0;
+		int end = offset+length*stride;
+		for(int i = offset; i<end; i+=stride){
+			double w = b*data[i] + a1*w1 + a2*w2 + a3*w3;
+			data[i] = (float) w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+		w1 = 0.0;
+		w2 = 0.0;
+		w3 = 0.0;
+		for(int i = end-stride; i>=offset; i-=stride){
+			double w = b*data[i] + a1*w1 + a2*w2 + a3*w3;
+			data[i] = (float) w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+	}
+
+	/**
+	 * Filters a set of parallel lines in place, one whole 'row' of values at a time. Row i of the sweep is held in rows[i], starting at offsets[i].
+	 * This keeps memory access sequential when the lines run across rows of an image, or across slices of a stack.
+	 *
+	 * @param rows		The array holding each row of the sweep (the same array may be used for several rows)
+	 * @param offsets	The index of the first value of each row, within its array
+	 * @param count		The number of rows in the sweep
+	 * @param start		The first value of each row to filter, relative to its offset
+	 * @param length	The number of values of each row to filter
+	 */
+	void filterSweep(float[][] rows, int[] offsets, int count, int start, int length){
+		//Causal pass
+		for(int r = 0; r<count; r++){
+			float[] d = rows[r];
+			int o = offsets[r]+start;
+			if(r>=3){
+				float[] p1 = rows[r-1], p2 = rows[r-2], p3 = rows[r-3];
+				int o1 = offsets[r-1]+start, o2 = offsets[r-2]+start, o3 = offsets[r-3]+start;
+				for(int i = 0; i<length; i++){
+					d[o+i] = (float)(b*d[o+i] + a1*p1[o1+i] + a2*p2[o2+i] + a3*p3[o3+i]);
+				}
+			} else {
+				stepEdge(rows, offsets, count, r, -1, start, length);
+			}
+		}
+		//Anti-causal pass
+		for(int r = count-1; r>=0; r--){
+			float[] d = rows[r];
+			int o = offsets[r]+start;
+			if(r<count-3){
+				float[] p1 = rows[r+1], p2 = rows[r+2], p3 = rows[r+3];
+				int o1 = offsets[r+1]+start, o2 = offsets[r+2]+start, o3 = offsets[r+3]+start;
+				for(int i = 0; i<length; i++){
+					d[o+i] = (float)(b*d[o+i] + a1*p1[o1+i] + a2*p2[o2+i] + a3*p3[o3+i]);
+				}
+			} else {
+				stepEdge(rows, offsets, count, r, 1, start, length);
+			}
+		}
+	}
+
+	/**
+	 * A single step of the sweep within three rows of its start, where some of the previous rows lie outside the image (and so are zero).
+	 */
+	private void stepEdge(float[][] rows, int[] offsets, int count, int r, int direction, int start, int length){
+		float[] d = rows[r];
+		int o = offsets[r]+start;
+		int r1 = r+direction, r2 = r+2*direction, r3 = r+3*direction;
+		boolean has1 = r1>=0 && r1<count, has2 = r2>=0 && r2<count, has3 = r3>=0 && r3<count;
+		for(int i = 0; i<length; i++){
+			double w = b*d[o+i];
+			if(has1) w += a1*rows[r1][offsets[r1]+start+i];
+			if(has2) w += a2*rows[r2][offsets[r2]+start+i];
+			if(has3) w += a3*rows[r3][offsets[r3]+start+i];
+			d[o+i] = (float) w;
+		}
+	}
+}
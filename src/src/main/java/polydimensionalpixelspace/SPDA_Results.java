@@ -15,6 +15,7 @@ public class SPDA_Results {
 	public CompositeImage pdaImp;
 	public double[][] eigenVec;
 	public ResultsTable results,eigenVectorTable, weightingsTable;
+	public SPDA_PCA_Model model;
 	
 	public SPDA_Results(){
 		
@@ -47,6 +48,9 @@ public class SPDA_Results {
 		if(this.eigenVec!=null){
 			dup.eigenVec = this.eigenVec;
 		}
+		if(this.model!=null){
+			dup.model = this.model;
+		}
 
 		return dup;
 	}
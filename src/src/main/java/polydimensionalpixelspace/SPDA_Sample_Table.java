@@ -0,0 +1,196 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.util.Arrays;
+
+/**
+ *
+ * <p>The table of sampled voxels of an image: the colour values of each voxel, held as one column per colour, and its coordinates and
+ * region. The XY position and the slice/frame of each voxel are each packed into a single int column, so no array is allocated per voxel.</p>
+ *
+ * <p>Coordinates are 0-indexed. Rows are in the order they were added.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+public class SPDA_Sample_Table {
+	private final int channels, width, slices;
+	private double[][] values;
+	private int[] pixels, planes, regions;
+	private int rows;
+
+	/**
+	 * @param channels	Number of colour columns
+	 * @param width		Width of the image, used to pack XY positions
+	 * @param slices	Number of slices of the image, used to pack slice and frame
+	 * @param capacity	Expected number of rows - the table grows if more are added
+	 */
+	public SPDA_Sample_Table(int channels, int width, int slices, int capacity){
+		this.channels = channels;
+		this.width = width;
+		this.slices = slices;
+		capacity = Math.max(1, capacity);
+		values = new double[channels][capacity];
+		pixels = new int[capacity];
+		planes = new int[capacity];
+		regions = new int[capacity];
+	}
+
+	/**
+	 * Creates a table from rows of colour values, with all coordinates 0
+	 *
+	 * @param table		Colour values arranged row/colour
+	 */
+	public static SPDA_Sample_Table fromArray(double[][] table){
+		SPDA_Sample_Table samples = new SPDA_Sample_Table(table[0].length, 1, 1, table.length);
+		for(int i = 0; i<table.length; i++){
+			int row = samples.add(0, 0, 0, 0, 0);
+			for(int c = 0; c<samples.channels; c++){
+				samples.values[c][row] = table[i][c];
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Adds a row for a voxel, with all colour values 0
+	 *
+	 * @return		Index of the new row
+	 */
+	public int add(int x, int y, int z, int t, int region){
+		if(rows == pixels.length){
+			int capacity = rows+(rows>>1)+1;
+			for(int c = 0; c<channels; c++){
+				values[c] = Arrays.copyOf(values[c], capacity);
+			}
+			pixels = Arrays.copyOf(pixels, capacity);
+			planes = Arrays.copyOf(planes, capacity);
+			regions = Arrays.copyOf(regions, capacity);
+		}
+		pixels[rows] = y*width+x;
+		planes[rows] = t*slices+z;
+		regions[rows] = region;
+		return rows++;
+	}
+
+	/**
+	 * Adds the colour values and regions of every row of another table with the same colours. The coordinates are not kept, as they 
+	 * belong to the other image.
+	 *
+	 * @param table		The table to add
+	 */
+	public void addRows(SPDA_Sample_Table table){
+		int start = rows;
+		for(int i = 0; i<table.rows; i++){
+			add(0, 0, 0, 0, table.regions[i]);
+		}
+		for(int c = 0; c<channels; c++){
+			System.arraycopy(table.values[c], 0, values[c], start, table.rows);
+		}
+	}
+
+	public int getRows(){
+		return rows;
+	}
+
+	public int getChannels(){
+		return channels;
+	}
+
+	public double get(int row, int c){
+		return values[c][row];
+	}
+
+	public void set(int row, int c, double value){
+		values[c][row] = value;
+	}
+
+	/**
+	 * Direct access to the values of a colour. The column may be longer than the number of rows.
+	 */
+	public double[] getColumn(int c){
+		return values[c];
+	}
+
+	/**
+	 * Copies the colour values of a row into a buffer
+	 *
+	 * @param row		Index of the row
+	 * @param buffer	Buffer holding at least one value per colour
+	 * @return		The buffer
+	 */
+	public double[] getRow(int row, double[] buffer){
+		for(int c = 0; c<channels; c++){
+			buffer[c] = values[c][row];
+		}
+		return buffer;
+	}
+
+	public int getX(int row){
+		return pixels[row]%width;
+	}
+
+	public int getY(int row){
+		return pixels[row]/width;
+	}
+
+	public int getZ(int row){
+		return planes[row]%slices;
+	}
+
+	public int getT(int row){
+		return planes[row]/slices;
+	}
+
+	/**
+	 * @return		Index of the voxel within its plane (y*width+x)
+	 */
+	public int getPixel(int row){
+		return pixels[row];
+	}
+
+	/**
+	 * @return		Index of the plane of the voxel (t*slices+z)
+	 */
+	public int getPlane(int row){
+		return planes[row];
+	}
+
+	public int getRegion(int row){
+		return regions[row];
+	}
+
+	/**
+	 * Creates a table holding some of the rows of this table
+	 *
+	 * @param rows		Indices of the rows to copy, in the order they should appear
+	 * @return		The new table
+	 */
+	public SPDA_Sample_Table select(int[] rows){
+		SPDA_Sample_Table table = new SPDA_Sample_Table(channels, width, slices, rows.length);
+		for(int i = 0; i<rows.length; i++){
+			int row = rows[i];
+			table.pixels[i] = pixels[row];
+			table.planes[i] = planes[row];
+			table.regions[i] = regions[row];
+			for(int c = 0; c<channels; c++){
+				table.values[c][i] = values[c][row];
+			}
+		}
+		table.rows = rows.length;
+		return table;
+	}
+
+	/**
+	 * Copies the colour values into an array arranged row/colour, as used by older versions of the analysis
+	 *
+	 * @return		The colour values as a double[][]
+	 */
+	public double[][] toArray(){
+		double[][] table = new double[rows][channels];
+		for(int i = 0; i<rows; i++){
+			getRow(i, table[i]);
+		}
+		return table;
+	}
+}
@@ -0,0 +1,144 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *
+ * Chooses the rows of a sample table that are used to fit the PCA or k-means. Fitting on a subsample is much faster for large images and
+ * batches, and every row is still projected onto the fitted model for the output. The strategies are:
+ *
+ * <ul>
+ * <li>SAMPLE_ALL - every row</li>
+ * <li>SAMPLE_GRID - rows on a regular grid, every gridStep pixels in X and Y and every gridStepZ slices</li>
+ * <li>SAMPLE_RANDOM - a uniform random sample of sampleRows rows</li>
+ * <li>SAMPLE_STRATIFIED - a uniform random sample of each region, with sampleRows rows shared between the regions by size</li>
+ * </ul>
+ *
+ * <p>Random sampling is seeded from the options, so the same rows are chosen each time. Chosen rows keep their order in the table.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+class SPDA_Sampling {
+
+	/**
+	 * Takes the rows used for fitting from a sample table
+	 *
+	 * @param table		The full sample table
+	 * @param options	Options holding the sampling strategy
+	 * @return		A table of the chosen rows, or the original table if every row is chosen
+	 */
+	static SPDA_Sample_Table subsample(SPDA_Sample_Table table, SPDA_Options options){
+		int[] rows = null;
+		switch(options.sampling){
+			case SPDA_Pixelspace.SAMPLE_GRID:
+				rows = grid(table, options.gridStep, options.gridStepZ);
+				break;
+			case SPDA_Pixelspace.SAMPLE_RANDOM:
+				rows = random(table, options.sampleRows, options.seed);
+				break;
+			case SPDA_Pixelspace.SAMPLE_STRATIFIED:
+				rows = stratified(table, options.sampleRows, options.seed);
+				break;
+		}
+		if(rows == null || rows.length == 0 || rows.length == table.getRows()){
+			return table;
+		}
+		return table.select(rows);
+	}
+
+	/**
+	 * Limits a table to a uniform random sample of at most target rows, whatever the sampling strategy
+	 *
+	 * @param table		The table, usually already subsampled
+	 * @param target	Most rows kept
+	 * @param seed		Random seed
+	 * @return		A table of the chosen rows, or the original table if it has no more than target rows
+	 */
+	static SPDA_Sample_Table cap(SPDA_Sample_Table table, int target, long seed){
+		int[] rows = random(table, target, seed);
+		if(rows == null) return table;
+		return table.select(rows);
+	}
+
+	private static int[] grid(SPDA_Sample_Table table, int step, int stepZ){
+		step = Math.max(1, step);
+		stepZ = Math.max(1, stepZ);
+		int[] rows = new int[table.getRows()];
+		int count = 0;
+		for(int i = 0; i<table.getRows(); i++){
+			if(table.getX(i)%step == 0 && table.getY(i)%step == 0 && table.getZ(i)%stepZ == 0){
+				rows[count++] = i;
+			}
+		}
+		return Arrays.copyOf(rows, count);
+	}
+
+	private static int[] random(SPDA_Sample_Table table, int target, long seed){
+		int total = table.getRows();
+		if(target<=0 || target>=total) return null;
+		Random rand = new Random(seed);
+		int[] reservoir = new int[target];
+		for(int i = 0; i<total; i++){
+			if(i<target){
+				reservoir[i] = i;
+			} else {
+				int j = rand.nextInt(i+1);
+				if(j<target) reservoir[j] = i;
+			}
+		}
+		Arrays.sort(reservoir);
+		return reservoir;
+	}
+
+	private static int[] stratified(SPDA_Sample_Table table, int target, long seed){
+		int total = table.getRows();
+		if(target<=0 || target>=total) return null;
+
+		int regions = 0;
+		for(int i = 0; i<total; i++){
+			regions = Math.max(regions, table.getRegion(i));
+		}
+		int[] counts = new int[regions+1];
+		for(int i = 0; i<total; i++){
+			counts[table.getRegion(i)]++;
+		}
+
+		//Share the rows between regions by size, keeping at least one row of each region
+		int[][] reservoirs = new int[regions+1][];
+		for(int r = 0; r<=regions; r++){
+			int quota = (int) Math.round((double) target*counts[r]/total);
+			if(counts[r]>0) quota = Math.max(1, quota);
+			reservoirs[r] = new int[Math.min(quota, counts[r])];
+		}
+
+		Random rand = new Random(seed);
+		int[] seen = new int[regions+1];
+		for(int i = 0; i<total; i++){
+			int r = table.getRegion(i);
+			int[] reservoir = reservoirs[r];
+			int n = seen[r]++;
+			if(n<reservoir.length){
+				reservoir[n] = i;
+			} else {
+				int j = rand.nextInt(n+1);
+				if(j<reservoir.length) reservoir[j] = i;
+			}
+		}
+
+		int size = 0;
+		for(int r = 0; r<=regions; r++){
+			size += reservoirs[r].length;
+		}
+		int[] rows = new int[size];
+		int count = 0;
+		for(int r = 0; r<=regions; r++){
+			System.arraycopy(reservoirs[r], 0, rows, count, reservoirs[r].length);
+			count += reservoirs[r].length;
+		}
+		Arrays.sort(rows);
+		return rows;
+	}
+}
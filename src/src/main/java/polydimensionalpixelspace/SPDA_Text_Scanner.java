@@ -0,0 +1,195 @@
+package src.main.java.polydimensionalpixelspace;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * <p>Reads a text file of whitespace separated values a line at a time, for the positional file formats. The file is memory mapped a window
+ * at a time, and each line is copied into one reused buffer and its numbers parsed straight from the bytes, so no object is created per line
+ * or per value.</p>
+ *
+ * <p>Numbers of up to 15 digits are converted exactly; anything else (long numbers, NaN...) is passed to Double.parseDouble.</p>
+ *
+ * @author John MJ Lapage
+ * @version 1.0
+ *
+ */
+class SPDA_Text_Scanner {
+	/**
+	 * Size of the window of the file mapped at a time
+	 */
+	static final long WINDOW = 1L<<26;
+	private static final double[] POWERS = new double[23];
+	static {
+		POWERS[0] = 1.0;
+		for(int i = 1; i<POWERS.length; i++){
+			POWERS[i] = POWERS[i-1]*10.0;
+		}
+	}
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long length;
+	private MappedByteBuffer buffer;
+	private long windowStart;
+	private byte[] line = new byte[256];
+	private int lineLength, position, lineNumber;
+
+	SPDA_Text_Scanner(String path) throws IOException{
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+		length = channel.size();
+		map(0);
+	}
+
+	private void map(long start) throws IOException{
+		windowStart = start;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, length-start));
+	}
+
+	/**
+	 * Moves to the next line of the file
+	 *
+	 * @return		False if the end of the file has been reached
+	 */
+	boolean nextLine() throws IOException{
+		lineLength = 0;
+		position = 0;
+		if(windowStart+buffer.position()>=length) return false;
+		while(true){
+			if(!buffer.hasRemaining()){
+				long next = windowStart+buffer.position();
+				if(next>=length) break;
+				map(next);
+			}
+			byte b = buffer.get();
+			if(b == '\n') break;
+			if(lineLength == line.length){
+				byte[] longer = new byte[line.length*2];
+				System.arraycopy(line, 0, longer, 0, lineLength);
+				line = longer;
+			}
+			line[lineLength++] = b;
+		}
+		if(lineLength>0 && line[lineLength-1] == '\r') lineLength--;
+		lineNumber++;
+		return true;
+	}
+
+	/**
+	 * @return		The 1-indexed number of the current line
+	 */
+	int getLineNumber(){
+		return lineNumber;
+	}
+
+	/**
+	 * @return		True if the current line starts with the word
+	 */
+	boolean startsWith(String word){
+		if(word.length()>lineLength) return false;
+		for(int i = 0; i<word.length(); i++){
+			if(line[i] != word.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return		True if there is another value on the current line
+	 */
+	boolean hasToken(){
+		skipSpace();
+		return position<lineLength;
+	}
+
+	/**
+	 * Skips the next value of the current line
+	 */
+	void skipToken(){
+		skipSpace();
+		while(position<lineLength && !isSpace(line[position])) position++;
+	}
+
+	/**
+	 * @return		The rest of the current line, trimmed
+	 */
+	String rest(){
+		String text = new String(line, position, lineLength-position).trim();
+		position = lineLength;
+		return text;
+	}
+
+	/**
+	 * Reads the next value of the current line as a number
+	 *
+	 * @throws NumberFormatException	If there is no value, or it is not a number
+	 */
+	double nextDouble(){
+		skipSpace();
+		int start = position;
+		if(position == lineLength) throw new NumberFormatException("missing value");
+		boolean negative = false;
+		if(line[position] == '-' || line[position] == '+'){
+			negative = line[position] == '-';
+			position++;
+		}
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		while(position<lineLength && isDigit(line[position])){
+			mantissa = mantissa*10+(line[position++]-'0');
+			digits++;
+		}
+		if(position<lineLength && line[position] == '.'){
+			position++;
+			while(position<lineLength && isDigit(line[position])){
+				mantissa = mantissa*10+(line[position++]-'0');
+				digits++;
+				scale--;
+			}
+		}
+		if(digits>0 && position<lineLength && (line[position] == 'e' || line[position] == 'E')){
+			position++;
+			boolean negativeExponent = false;
+			if(position<lineLength && (line[position] == '-' || line[position] == '+')){
+				negativeExponent = line[position] == '-';
+				position++;
+			}
+			int exponent = 0;
+			int exponentDigits = 0;
+			while(position<lineLength && isDigit(line[position])){
+				exponent = Math.min(exponent*10+(line[position++]-'0'), 100000);
+				exponentDigits++;
+			}
+			if(exponentDigits == 0) digits = 0;
+			scale += negativeExponent ? -exponent : exponent;
+		}
+		if(digits == 0 || digits>15 || scale<-22 || scale>22 || (position<lineLength && !isSpace(line[position]))){
+			skipToken();
+			return Double.parseDouble(new String(line, start, position-start));
+		}
+		double value = scale<0 ? mantissa/POWERS[-scale] : mantissa*POWERS[scale];
+		return negative ? -value : value;
+	}
+
+	void close(){
+		try{
+			file.close();
+		} catch(IOException e){
+		}
+		buffer = null;
+	}
+
+	private void skipSpace(){
+		while(position<lineLength && isSpace(line[position])) position++;
+	}
+
+	private static boolean isSpace(byte b){
+		return b == ' ' || b == '\t' || b == '\f';
+	}
+
+	private static boolean isDigit(byte b){
+		return b>='0' && b<='9';
+	}
+}